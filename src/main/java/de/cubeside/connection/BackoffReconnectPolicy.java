@@ -0,0 +1,123 @@
+package de.cubeside.connection;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link ReconnectPolicy} with exponential backoff and decorrelated jitter. The first attempt after a lost connection
+ * is made immediately. Later delays are chosen randomly between the base delay and three times the previous delay, but
+ * never more than the maximum delay. The first random delay is between the base delay and three times the base delay.
+ * The random delays keep clients from reconnecting at the same time after the server was restarted. Instances are
+ * immutable.
+ */
+public final class BackoffReconnectPolicy implements ReconnectPolicy {
+    private static final BackoffReconnectPolicy DEFAULTS = new BackoffReconnectPolicy(1000, 60_000, 30_000, 30_000);
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long loginFailedDelayMillis;
+    private final long stableConnectionMillis;
+
+    private BackoffReconnectPolicy(long baseDelayMillis, long maxDelayMillis, long loginFailedDelayMillis, long stableConnectionMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.loginFailedDelayMillis = loginFailedDelayMillis;
+        this.stableConnectionMillis = stableConnectionMillis;
+    }
+
+    /**
+     * Get the default policy: 1 second base delay, 1 minute maximum delay, at least 30 seconds after a failed login and
+     * a connection is stable after 30 seconds.
+     *
+     * @return the default policy
+     */
+    public static BackoffReconnectPolicy defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Get a copy of this policy with different delays.
+     *
+     * @param baseDelayMillis
+     *            the smallest delay after the first attempt in milliseconds
+     * @param maxDelayMillis
+     *            the largest delay in milliseconds
+     * @return the new policy
+     */
+    public BackoffReconnectPolicy withDelays(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 1) {
+            throw new IllegalArgumentException("baseDelayMillis must be positive");
+        }
+        if (maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("maxDelayMillis may not be smaller than baseDelayMillis");
+        }
+        return new BackoffReconnectPolicy(baseDelayMillis, maxDelayMillis, loginFailedDelayMillis, stableConnectionMillis);
+    }
+
+    /**
+     * Get a copy of this policy with a different minimum delay after a failed login. A failed login is usually caused
+     * by a wrong configuration, so it is not retried immediately.
+     *
+     * @param loginFailedDelayMillis
+     *            the minimum delay after a failed login in milliseconds
+     * @return the new policy
+     */
+    public BackoffReconnectPolicy withLoginFailedDelay(long loginFailedDelayMillis) {
+        if (loginFailedDelayMillis < 0) {
+            throw new IllegalArgumentException("loginFailedDelayMillis may not be negative");
+        }
+        return new BackoffReconnectPolicy(baseDelayMillis, maxDelayMillis, loginFailedDelayMillis, stableConnectionMillis);
+    }
+
+    /**
+     * Get a copy of this policy with a different time after which a connection is stable.
+     *
+     * @param stableConnectionMillis
+     *            the time in milliseconds
+     * @return the new policy
+     */
+    public BackoffReconnectPolicy withStableConnection(long stableConnectionMillis) {
+        if (stableConnectionMillis < 0) {
+            throw new IllegalArgumentException("stableConnectionMillis may not be negative");
+        }
+        return new BackoffReconnectPolicy(baseDelayMillis, maxDelayMillis, loginFailedDelayMillis, stableConnectionMillis);
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public long getLoginFailedDelayMillis() {
+        return loginFailedDelayMillis;
+    }
+
+    @Override
+    public long getStableConnectionMillis() {
+        return stableConnectionMillis;
+    }
+
+    @Override
+    public long getDelay(Reason reason, int attempt, long previousDelayMillis) {
+        long delay;
+        if (attempt <= 1) {
+            delay = 0;
+        } else {
+            // the first attempt has no delay, so the first random delay is based on the base delay
+            long previous = Math.max(baseDelayMillis, previousDelayMillis);
+            long upper = Math.min(maxDelayMillis, previous * 3);
+            delay = upper > baseDelayMillis ? ThreadLocalRandom.current().nextLong(baseDelayMillis, upper + 1) : baseDelayMillis;
+        }
+        if (reason == Reason.LOGIN_FAILED) {
+            delay = Math.max(delay, loginFailedDelayMillis);
+        }
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffReconnectPolicy{baseDelayMillis=" + baseDelayMillis + ";maxDelayMillis=" + maxDelayMillis + ";loginFailedDelayMillis=" + loginFailedDelayMillis + ";stableConnectionMillis=" + stableConnectionMillis + "}";
+    }
+}
@@ -0,0 +1,185 @@
+package de.cubeside.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies a {@link SendPolicy} to the messages of one channel. All methods must be called while holding the lock of
+ * the client.
+ */
+class ChannelSendState {
+    private final GlobalClient client;
+    private final ScheduledExecutorService scheduler;
+    private final SendPolicy policy;
+
+    private final LinkedHashMap<OutboundData.Target, OutboundData> coalesced;
+    private boolean flushScheduled;
+
+    private final ArrayDeque<OutboundData> delayed;
+    private boolean drainScheduled;
+    private double tokens;
+    private long lastRefill;
+
+    private boolean closed;
+
+    private long sentCount;
+    private long coalescedCount;
+    private long delayedCount;
+    private long droppedCount;
+
+    ChannelSendState(GlobalClient client, ScheduledExecutorService scheduler, SendPolicy policy) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.policy = policy;
+        this.coalesced = new LinkedHashMap<>();
+        this.delayed = new ArrayDeque<>();
+        this.tokens = policy.getBurst();
+        this.lastRefill = System.nanoTime();
+    }
+
+    SendPolicy getPolicy() {
+        return policy;
+    }
+
+    void submit(OutboundData message) {
+        if (policy.isCoalescing()) {
+            if (coalesced.put(message.getTarget(), message) != null) {
+                coalescedCount++;
+            }
+            if (!flushScheduled) {
+                flushScheduled = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (client) {
+                            flushScheduled = false;
+                            if (!closed) {
+                                flushCoalesced();
+                            }
+                        }
+                    }
+                }, TimeUnit.MILLISECONDS.toNanos(policy.getCoalesceIntervalMillis()));
+                if (!flushScheduled) {
+                    flushCoalesced();
+                }
+            }
+        } else {
+            offer(message);
+        }
+    }
+
+    private void flushCoalesced() {
+        ArrayList<OutboundData> messages = new ArrayList<>(coalesced.values());
+        coalesced.clear();
+        for (OutboundData message : messages) {
+            offer(message);
+        }
+    }
+
+    private void offer(OutboundData message) {
+        if (!policy.isRateLimited()) {
+            send(message);
+            return;
+        }
+        refill();
+        if (delayed.isEmpty() && tokens >= 1) {
+            tokens -= 1;
+            send(message);
+        } else if (policy.getOverflowAction() == SendPolicy.OverflowAction.DELAY && delayed.size() < policy.getMaxDelayedMessages()) {
+            delayed.add(message);
+            delayedCount++;
+            scheduleDrain();
+        } else {
+            droppedCount++;
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(policy.getBurst(), tokens + (now - lastRefill) * policy.getMessagesPerSecond() / 1_000_000_000.0);
+        lastRefill = now;
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        long delayNanos = (long) Math.ceil((1 - tokens) * 1_000_000_000.0 / policy.getMessagesPerSecond());
+        drainScheduled = schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (client) {
+                    drainScheduled = false;
+                    if (!closed) {
+                        drainDelayed();
+                    }
+                }
+            }
+        }, Math.max(0, delayNanos));
+    }
+
+    private boolean schedule(Runnable task, long delayNanos) {
+        try {
+            scheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+            return false;
+        }
+    }
+
+    private void drainDelayed() {
+        refill();
+        while (!delayed.isEmpty() && tokens >= 1) {
+            tokens -= 1;
+            send(delayed.poll());
+        }
+        if (!delayed.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private boolean send(OutboundData message) {
+        if (!client.writeData(message)) {
+            return false;
+        }
+        sentCount++;
+        return true;
+    }
+
+    /**
+     * @return the number of coalesced and delayed messages
+     */
+    int getPendingCount() {
+        return coalesced.size() + delayed.size();
+    }
+
+    /**
+     * Sends all coalesced and delayed messages immediately and stops applying the policy.
+     *
+     * @return the number of messages that were sent or spooled
+     */
+    int close() {
+        closed = true;
+        int flushed = 0;
+        for (OutboundData message : coalesced.values()) {
+            if (send(message)) {
+                flushed++;
+            }
+        }
+        coalesced.clear();
+        while (!delayed.isEmpty()) {
+            if (send(delayed.poll())) {
+                flushed++;
+            }
+        }
+        return flushed;
+    }
+
+    SendStatistics getStatistics() {
+        return new SendStatistics(sentCount, coalescedCount, delayedCount, droppedCount);
+    }
+}
@@ -0,0 +1,312 @@
+package de.cubeside.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the headers of the last data packets of a {@link GlobalClient} and logs unhandled data with bounded cost. Use
+ * {@link GlobalClient#getDiagnosticTap()} to get the tap of a client.
+ * <p>
+ * The headers are stored in a ring buffer that is written without locks, so recording them is cheap enough to be
+ * always enabled. Unhandled data is only logged for every n-th packet in a channel and only the start of the payload
+ * is logged.
+ */
+public final class DiagnosticTap {
+    /**
+     * How payloads are written to the log
+     */
+    public enum Format {
+        HEX,
+        BASE64
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int MAX_RETAINED_BUILDER = 1 << 12;
+
+    private final AtomicLong sequence;
+    private volatile AtomicReferenceArray<PacketHeader> history;
+    private final ConcurrentHashMap<String, Integer> sampleIntervals;
+    private final ConcurrentHashMap<String, AtomicLong> unhandledCounts;
+    private final ThreadLocal<StringBuilder> builders;
+    private volatile int defaultSampleInterval;
+    private volatile int maxPayloadBytes;
+    private volatile Format format;
+
+    DiagnosticTap(int historySize) {
+        this.sequence = new AtomicLong();
+        this.history = historySize > 0 ? new AtomicReferenceArray<>(historySize) : null;
+        this.sampleIntervals = new ConcurrentHashMap<>();
+        this.unhandledCounts = new ConcurrentHashMap<>();
+        this.builders = new ThreadLocal<>();
+        this.defaultSampleInterval = 100;
+        this.maxPayloadBytes = 64;
+        this.format = Format.HEX;
+    }
+
+    /**
+     * Sets the number of packet headers that are kept. Headers recorded so far are discarded.
+     *
+     * @param historySize
+     *            the number of headers or 0 to disable recording
+     */
+    public void setHistorySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("historySize may not be negative");
+        }
+        history = historySize > 0 ? new AtomicReferenceArray<>(historySize) : null;
+    }
+
+    /**
+     * Sets how often unhandled data is logged in channels without their own interval. The default is 100, so the first
+     * packet and every 100th packet after it are logged.
+     *
+     * @param interval
+     *            log one of interval packets or 0 to never log
+     */
+    public void setDefaultSampleInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval may not be negative");
+        }
+        this.defaultSampleInterval = interval;
+    }
+
+    /**
+     * Sets how often unhandled data in a channel is logged.
+     *
+     * @param channel
+     *            the channel
+     * @param interval
+     *            log one of interval packets, 0 to never log or -1 to use the default interval
+     */
+    public void setSampleInterval(String channel, int interval) {
+        if (interval < -1) {
+            throw new IllegalArgumentException("invalid interval: " + interval);
+        }
+        if (interval == -1) {
+            sampleIntervals.remove(channel);
+        } else {
+            sampleIntervals.put(channel, interval);
+        }
+    }
+
+    /**
+     * Sets the number of payload bytes that are logged. Longer payloads are truncated. The default is 64.
+     *
+     * @param maxPayloadBytes
+     *            the number of bytes
+     */
+    public void setMaxPayloadBytes(int maxPayloadBytes) {
+        if (maxPayloadBytes < 0) {
+            throw new IllegalArgumentException("maxPayloadBytes may not be negative");
+        }
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    public void setFormat(Format format) {
+        if (format == null) {
+            throw new NullPointerException("format");
+        }
+        this.format = format;
+    }
+
+    /**
+     * Get the number of unhandled packets received in a channel, including the ones that were not logged
+     *
+     * @param channel
+     *            the channel
+     * @return the number of unhandled packets
+     */
+    public long getUnhandledCount(String channel) {
+        AtomicLong count = unhandledCounts.get(channel);
+        return count == null ? 0 : count.get();
+    }
+
+    void record(boolean inbound, String server, String channel, UUID targetUuid, String targetServer, int length) {
+        AtomicReferenceArray<PacketHeader> history = this.history;
+        if (history == null) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        history.set((int) (seq % history.length()), new PacketHeader(seq, System.currentTimeMillis(), inbound, server, channel, targetUuid, targetServer, length));
+    }
+
+    /**
+     * Get the headers of the last packets, oldest first. Packets recorded while this method runs may be missing.
+     *
+     * @return the headers
+     */
+    public List<PacketHeader> getRecentPackets() {
+        AtomicReferenceArray<PacketHeader> history = this.history;
+        if (history == null) {
+            return List.of();
+        }
+        long end = sequence.get();
+        long start = Math.max(0, end - history.length());
+        ArrayList<PacketHeader> result = new ArrayList<>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            PacketHeader header = history.get((int) (seq % history.length()));
+            // skip slots that have already been overwritten or are not written yet
+            if (header != null && header.sequence == seq) {
+                result.add(header);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the headers of the last packets as text, one line per packet.
+     *
+     * @return the headers
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (PacketHeader header : getRecentPackets()) {
+            sb.append(header).append('\n');
+        }
+        return sb.toString();
+    }
+
+    void logUnhandled(Logger logger, GlobalServer source, String channel, GlobalPlayer targetPlayer, GlobalServer targetServer, byte[] data) {
+        Integer channelInterval = sampleIntervals.get(channel);
+        int interval = channelInterval != null ? channelInterval : defaultSampleInterval;
+        AtomicLong counter = unhandledCounts.get(channel);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = unhandledCounts.putIfAbsent(channel, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        long count = counter.getAndIncrement();
+        if (interval == 0 || count % interval != 0 || !logger.isLoggable(Level.INFO)) {
+            return;
+        }
+        StringBuilder sb = builders.get();
+        if (sb == null) {
+            sb = new StringBuilder();
+            builders.set(sb);
+        }
+        sb.setLength(0);
+        sb.append("Data from ").append(source).append(" in Channel ").append(channel).append(" to ").append(targetPlayer).append("; ").append(targetServer);
+        if (count > 0) {
+            sb.append(" (unhandled packet ").append(count + 1).append(")");
+        }
+        sb.append(" Data: ");
+        int length = Math.min(data.length, maxPayloadBytes);
+        if (format == Format.BASE64) {
+            appendBase64(sb, data, 0, length);
+        } else {
+            appendHex(sb, data, 0, length);
+        }
+        if (length < data.length) {
+            sb.append("... (").append(data.length).append(" bytes)");
+        }
+        logger.info(sb.toString());
+        if (sb.capacity() > MAX_RETAINED_BUILDER) {
+            builders.remove();
+        }
+    }
+
+    /**
+     * Appends bytes as lower case hex digits.
+     */
+    public static void appendHex(StringBuilder sb, byte[] data, int offset, int length) {
+        sb.ensureCapacity(sb.length() + length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            sb.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0x0F]);
+        }
+    }
+
+    /**
+     * Appends bytes as Base64 with padding.
+     */
+    public static void appendBase64(StringBuilder sb, byte[] data, int offset, int length) {
+        sb.ensureCapacity(sb.length() + (length + 2) / 3 * 4);
+        int end = offset + length;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            sb.append(BASE64_DIGITS[bits >>> 18]).append(BASE64_DIGITS[(bits >>> 12) & 0x3F]).append(BASE64_DIGITS[(bits >>> 6) & 0x3F]).append(BASE64_DIGITS[bits & 0x3F]);
+        }
+        if (i < end) {
+            int bits = (data[i] & 0xFF) << 16 | (i + 1 < end ? (data[i + 1] & 0xFF) << 8 : 0);
+            sb.append(BASE64_DIGITS[bits >>> 18]).append(BASE64_DIGITS[(bits >>> 12) & 0x3F]);
+            sb.append(i + 1 < end ? BASE64_DIGITS[(bits >>> 6) & 0x3F] : '=').append('=');
+        }
+    }
+
+    /**
+     * The header of a sent or received data packet
+     */
+    public static final class PacketHeader {
+        private final long sequence;
+        private final long timeMillis;
+        private final boolean inbound;
+        private final String server;
+        private final String channel;
+        private final UUID targetUuid;
+        private final String targetServer;
+        private final int length;
+
+        PacketHeader(long sequence, long timeMillis, boolean inbound, String server, String channel, UUID targetUuid, String targetServer, int length) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.inbound = inbound;
+            this.server = server;
+            this.channel = channel;
+            this.targetUuid = targetUuid;
+            this.targetServer = targetServer;
+            this.length = length;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public boolean isInbound() {
+            return inbound;
+        }
+
+        /**
+         * Get the server that sent a received packet
+         *
+         * @return the server or null for sent packets
+         */
+        public String getServer() {
+            return server;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public UUID getTargetUuid() {
+            return targetUuid;
+        }
+
+        public String getTargetServer() {
+            return targetServer;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + timeMillis + (inbound ? " in from " + server : " out") + " channel=" + channel + " targetUuid=" + targetUuid + " targetServer=" + targetServer + " length=" + length;
+        }
+    }
+}
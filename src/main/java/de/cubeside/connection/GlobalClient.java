@@ -1,23 +1,44 @@
 package de.cubeside.connection;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
@@ -28,6 +49,20 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public abstract class GlobalClient implements ConnectionAPI {
+    private static final int MAX_RETAINED_FRAME_BUFFER = 1 << 16;
+    private static final int SPOOL_SEGMENT_SIZE = 4 << 20;
+    private static final long CACHE_EVICTION_MILLIS = 10_000;
+    private static final long SCHEDULER_KEEP_ALIVE_MILLIS = 30_000;
+    private static final long PING_INTERVAL_MILLIS = 10_000;
+    private static final long PING_ROUND_MILLIS = 1000;
+    private static final long PING_SENDER_KEEP_ALIVE_MILLIS = 30_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int DIAGNOSTIC_HISTORY_SIZE = 256;
+    private static final int EVENT_THREADS = 4;
+    private static final long DEFAULT_SHUTDOWN_MILLIS = 5000;
+    private static final String CIPHER_TRANSFORMATION = "AES/CFB8/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final Logger logger;
 
     private String host;
@@ -35,15 +70,46 @@ public abstract class GlobalClient implements ConnectionAPI {
     private String account;
     private String password;
     private volatile boolean running;
+    private volatile boolean closing;
+    private long rejectedSends;
 
-    private PingThread pingThread;
     private ClientThread connection;
-    private DataOutputStream dos;
+    private volatile DataOutputStream dos;
 
     private final ConcurrentHashMap<String, GlobalServer> servers;
     private final ConcurrentHashMap<UUID, GlobalPlayer> players;
     private final Collection<GlobalServer> unmodifiableServers;
     private final Collection<GlobalPlayer> unmodifiablePlayers;
+    private final BitSet usedServerIndices;
+    private final ScheduledExecutorService scheduler;
+    private volatile TrafficRecorder recorder;
+    private final DiagnosticTap diagnosticTap;
+    private final CopyOnWriteArrayList<RegisteredListener> listeners;
+    private final ArrayDeque<GlobalEvent> pendingEvents;
+    private boolean publishingEvents;
+    private volatile ThreadPoolExecutor[] eventExecutors;
+    private final ReliableDelivery reliableDelivery;
+    private final HashMap<String, ReplicatedCache<?>> caches;
+    /**
+     * True if the caches have asked a server for a snapshot on the current connection
+     */
+    private boolean snapshotsRequested;
+    private volatile long playerSwitchWindowMillis;
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile ReconnectPolicy.Reason lastReconnectReason;
+    private volatile int reconnectAttempts;
+    private volatile long nextReconnectMillis;
+
+    private final ConcurrentHashMap<String, MessageChannel<?>> messageChannels;
+    private final HashMap<String, ChannelSendState> sendStates;
+    private final HashSet<String> spooledChannels;
+    private OutboundSpool spool;
+    private boolean spoolDraining;
+    private final AtomicBoolean pingPending = new AtomicBoolean();
+    private volatile long lastPingNanos = System.nanoTime();
+    private final Object spoolDrainLock = new Object();
+    private final Runnable spoolDrainTask;
+    private MessageOutput frameBuffer;
 
     protected GlobalClient(Logger logger) {
         this.logger = logger != null ? logger : Logger.getLogger("GlobalClient");
@@ -51,75 +117,289 @@ public abstract class GlobalClient implements ConnectionAPI {
         unmodifiableServers = Collections.unmodifiableCollection(servers.values());
         this.players = new ConcurrentHashMap<>();
         unmodifiablePlayers = Collections.unmodifiableCollection(players.values());
+        this.usedServerIndices = new BitSet();
+        this.messageChannels = new ConcurrentHashMap<>();
+        this.frameBuffer = new MessageOutput();
+        this.sendStates = new HashMap<>();
+        this.spooledChannels = new HashSet<>();
+        this.reconnectPolicy = BackoffReconnectPolicy.defaults();
+        this.diagnosticTap = new DiagnosticTap(DIAGNOSTIC_HISTORY_SIZE);
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.pendingEvents = new ArrayDeque<>();
         this.running = true;
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GlobalConnectionScheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // only keep a thread while there are tasks, most clients never schedule anything
+        scheduler.setKeepAliveTime(SCHEDULER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler = scheduler;
+        this.reliableDelivery = new ReliableDelivery(this, scheduler);
+        this.caches = new HashMap<>();
+        this.spoolDrainTask = new Runnable() {
+            @Override
+            public void run() {
+                if (!drainSpoolBatch()) {
+                    synchronized (GlobalClient.this) {
+                        // packets may have been spooled after the last batch was read
+                        if (!spoolDraining || dos == null || spool == null || !spool.hasPending()) {
+                            spoolDraining = false;
+                            return;
+                        }
+                    }
+                }
+                try {
+                    scheduler.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the client is shutting down
+                    synchronized (GlobalClient.this) {
+                        spoolDraining = false;
+                    }
+                }
+            }
+        };
+
+        PingThread.register(this);
+    }
 
-        pingThread = new PingThread();
-        pingThread.setName("GlobalConnectionPing");
-        pingThread.setDaemon(true);
-        pingThread.start();
+    protected void setServer(String host, int port, String account, String password) {
+        synchronized (this) {
+            if (this.connection != null) {
+                this.connection.shutdown();
+                this.connection = null;
+                this.dos = null;
+            }
+            this.account = null;
+            this.clearServersAndPlayers();
+            this.host = host;
+            this.port = port;
+            this.account = account;
+            this.password = password;
+            setServerOnline(this.account);
+
+            if (this.host != null) {
+                this.connection = new ClientThread();
+                this.connection.setName("GlobalConnectionClient");
+                this.connection.setDaemon(true);
+                this.connection.start();
+            }
+        }
+        publishEvents();
     }
 
-    protected synchronized void setServer(String host, int port, String account, String password) {
-        if (this.connection != null) {
-            this.connection.shutdown();
-            this.connection = null;
-            this.dos = null;
+    /**
+     * Sets the time a player leaving a server is held back waiting for the same player joining another server. If the
+     * join arrives in time, both are reported as one call to
+     * {@link #onPlayerSwitchedServer(GlobalPlayer, GlobalServer, GlobalServer)}. If the player rejoins the same server
+     * in time, neither is reported. Disabled by default.
+     *
+     * @param millis
+     *            the time to wait in milliseconds, 0 to report leaves immediately
+     */
+    protected void setPlayerSwitchWindow(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis may not be negative");
         }
-        this.account = null;
-        this.clearServersAndPlayers();
-        this.host = host;
-        this.port = port;
-        this.account = account;
-        this.password = password;
-        setServerOnline(this.account);
+        this.playerSwitchWindowMillis = millis;
+    }
+
+    /**
+     * Sets how long the client waits before connecting again after a failure. The new policy is used for the next
+     * failure.
+     *
+     * @param policy
+     *            the policy. may not be null
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = Objects.requireNonNull(policy, "policy");
+    }
+
+    public ReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * Checks if the client is currently connected and logged in to the server
+     *
+     * @return true if the client is connected
+     */
+    public boolean isConnected() {
+        return dos != null;
+    }
 
-        if (this.host != null) {
-            this.connection = new ClientThread();
-            this.connection.setName("GlobalConnectionClient");
-            this.connection.setDaemon(true);
-            this.connection.start();
+    /**
+     * Get the number of failed connection attempts since the last stable connection
+     *
+     * @return the number of failed attempts
+     */
+    public int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    /**
+     * Get the reason of the last failed connection attempt
+     *
+     * @return the reason or null if no attempt has failed yet
+     */
+    public ReconnectPolicy.Reason getLastReconnectReason() {
+        return lastReconnectReason;
+    }
+
+    /**
+     * Get the time of the next connection attempt
+     *
+     * @return the time in epoch milliseconds or 0 if the client is not waiting to connect again
+     */
+    public long getNextReconnectMillis() {
+        return nextReconnectMillis;
+    }
+
+    /**
+     * Connects again immediately if the client is currently waiting after a failed attempt.
+     */
+    public synchronized void reconnectNow() {
+        ClientThread localConnection = connection;
+        if (localConnection != null) {
+            localConnection.reconnectNow();
         }
     }
 
-    private class PingThread extends Thread {
-        private volatile boolean running = true;
+    /**
+     * Pings all clients in this JVM, so servers running several clients need no thread per client for this. Every
+     * second the thread hands a round to a shared pool of daemon threads. The round sends a ping to every connected
+     * client whose last ping was {@value #PING_INTERVAL_MILLIS} milliseconds ago, skipping clients whose previous ping
+     * is still being sent. Usually one pool thread handles all rounds. A client that is blocked while writing only
+     * holds up the round it blocks, the next round uses another thread. The pool threads stop after
+     * {@value #PING_SENDER_KEEP_ALIVE_MILLIS} milliseconds without rounds. The thread is started with the first client
+     * and stops when the last client is shut down.
+     */
+    private static class PingThread extends Thread {
+        private static final CopyOnWriteArrayList<GlobalClient> clients = new CopyOnWriteArrayList<>();
+        private static final ThreadPoolExecutor senders = new ThreadPoolExecutor(0, Integer.MAX_VALUE, PING_SENDER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GlobalConnectionPingSender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        private static final Runnable round = new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (GlobalClient client : clients) {
+                    client.pingIfDue(now);
+                }
+            }
+        };
+        private static PingThread instance;
+
+        private PingThread() {
+            setName("GlobalConnectionPing");
+            setDaemon(true);
+        }
+
+        static void register(GlobalClient client) {
+            synchronized (clients) {
+                clients.add(client);
+                if (instance == null) {
+                    instance = new PingThread();
+                    instance.start();
+                }
+            }
+        }
+
+        static void unregister(GlobalClient client) {
+            synchronized (clients) {
+                clients.remove(client);
+                if (clients.isEmpty() && instance != null) {
+                    instance.interrupt();
+                }
+            }
+        }
 
         @Override
         public void run() {
-            while (running) {
-                sendPing();
+            while (true) {
+                senders.execute(round);
+                synchronized (clients) {
+                    if (clients.isEmpty()) {
+                        instance = null;
+                        return;
+                    }
+                }
                 try {
-                    Thread.sleep(10000);
+                    Thread.sleep(PING_ROUND_MILLIS);
                 } catch (InterruptedException e) {
-                    interrupt();
+                    // check if there are clients left
                 }
             }
         }
-
-        public void shutdown() {
-            running = false;
-            this.interrupt();
-        }
     }
 
     private class ClientThread extends Thread {
-        private volatile boolean threadRunning;
-        private Socket socket;
+        // not set in run, shutdown may be called before the thread starts
+        private volatile boolean threadRunning = true;
+        private volatile Socket socket;
         private DataInputStream dis;
         private DataOutputStream localDos;
         private Runnable closingConnectionRunnable;
+        private final PresenceHandler presence = new PresenceHandler() {
+            @Override
+            void apply(Runnable change) {
+                runInMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runIfCurrent(change);
+                    }
+                });
+            }
+        };
+        private final String connectHost;
+        private final int connectPort;
+        private final String connectAccount;
+        private final byte[] passwordBytes;
+        private final MessageDigest digest;
+        private final Object reconnectLock = new Object();
+        private boolean reconnectRequested;
+        private int failedAttempts;
+        private long previousDelay;
+        private long connectedSince;
+
+        public ClientThread() {
+            // setServer may change the server before this thread has stopped
+            connectHost = host;
+            connectPort = port;
+            connectAccount = account;
+            // everything that does not depend on the server is prepared once, not on every connection attempt
+            passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+                Cipher.getInstance(CIPHER_TRANSFORMATION); // load the provider before the first connect
+            } catch (GeneralSecurityException e) {
+                throw new Error(e); // impossible
+            }
+        }
 
         @Override
         public void run() {
             closingConnectionRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    if (connection == ClientThread.this) {
-                        clearServersAndPlayers();
-                    }
+                    runIfCurrent(new Runnable() {
+                        @Override
+                        public void run() {
+                            clearRemoteServers();
+                        }
+                    });
                 }
             };
-            threadRunning = true;
             DataOutputStream localerDos = null;
             while (running && threadRunning) {
                 try {
@@ -127,24 +407,34 @@ public abstract class GlobalClient implements ConnectionAPI {
                         dis = null;
 
                         byte[] randomNumberClient = new byte[32];
-                        new SecureRandom().nextBytes(randomNumberClient);
+                        RANDOM.nextBytes(randomNumberClient);
+                        // the account does not depend on the answer of the server, so it is sent together with the nonce
+                        MessageOutput hello = new MessageOutput(64 + connectAccount.length());
+                        hello.write(randomNumberClient);
+                        hello.writeUTF(connectAccount);
 
-                        socket = new Socket(host, port);
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.connect(new InetSocketAddress(connectHost, connectPort), CONNECT_TIMEOUT_MILLIS);
                         socket.setSoTimeout(20000);
-                        DataInputStream dis = new DataInputStream(socket.getInputStream());
-                        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                        dos.write(randomNumberClient);
+                        DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64));
+                        OutputStream out = socket.getOutputStream();
+                        out.write(hello.getBuffer(), 0, hello.size());
 
                         byte[] randomNumberServer = new byte[32];
                         dis.readFully(randomNumberServer);
-                        dos.writeUTF(account);
 
-                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                        digest.update(password.getBytes(StandardCharsets.UTF_8));
+                        digest.reset();
+                        digest.update(passwordBytes);
+                        digest.update(randomNumberServer);
+                        digest.update(randomNumberClient);
+                        out.write(digest.digest());
+
+                        // derive the secret while the server checks the hash
                         digest.update(randomNumberServer);
+                        digest.update(passwordBytes);
                         digest.update(randomNumberClient);
-                        byte[] encodedhash = digest.digest();
-                        dos.write(encodedhash);
+                        byte[] secret = digest.digest();
 
                         byte result = dis.readByte();
                         if (result == 1) {
@@ -155,24 +445,12 @@ public abstract class GlobalClient implements ConnectionAPI {
                                 // ignored
                             }
                             dis = null;
-                            dos = null;
                             socket = null;
-                            try {
-                                Thread.sleep(60000);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+                            awaitReconnect(ReconnectPolicy.Reason.LOGIN_FAILED);
                             continue;
                         }
 
                         // switch to encoded connection
-                        byte[] secret;
-                        digest.reset();
-                        digest.update(randomNumberServer);
-                        digest.update(password.getBytes(StandardCharsets.UTF_8));
-                        digest.update(randomNumberClient);
-                        secret = digest.digest();
-
                         byte[] in = new byte[32];
                         dis.readFully(in);
                         byte[] keyInBytes = new byte[16];
@@ -189,60 +467,77 @@ public abstract class GlobalClient implements ConnectionAPI {
 
                         DataOutputStream finalDos;
                         try {
-                            Cipher cipherAESout = Cipher.getInstance("AES/CFB8/NoPadding");
+                            Cipher cipherAESout = Cipher.getInstance(CIPHER_TRANSFORMATION);
                             cipherAESout.init(Cipher.ENCRYPT_MODE, kpOut, new IvParameterSpec(new byte[] { 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1 }));
 
-                            finalDos = new DataOutputStream(new CipherOutputStream(socket.getOutputStream(), cipherAESout));
+                            finalDos = new DataOutputStream(new CipherOutputStream(out, cipherAESout));
 
-                            Cipher cipherAESin = Cipher.getInstance("AES/CFB8/NoPadding");
+                            Cipher cipherAESin = Cipher.getInstance(CIPHER_TRANSFORMATION);
                             cipherAESin.init(Cipher.DECRYPT_MODE, kpIn, new IvParameterSpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }));
 
-                            CipherInputStream cis = new CipherInputStream(socket.getInputStream(), cipherAESin);
+                            // the buffered stream may already contain encrypted data
+                            CipherInputStream cis = new CipherInputStream(dis, cipherAESin);
                             ClientThread.this.dis = new DataInputStream(cis);
                         } catch (GeneralSecurityException e) {
                             throw new Error(e);// impossible?
                         }
-                        runInMainThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                if (connection == ClientThread.this) {
-                                    localDos = finalDos;
-                                    sendClientsFromThisServer(finalDos);
-                                }
+                        // publish the connection right away instead of waiting for the main thread
+                        synchronized (GlobalClient.this) {
+                            if (connection == ClientThread.this) {
+                                localDos = finalDos;
+                                sendClientsFromThisServer(finalDos);
                             }
-                        });
+                        }
                         localerDos = finalDos;
+                        connectedSince = System.nanoTime();
                         logger.info("Connection established!");
                     } else {
                         ServerPacketType packet = ServerPacketType.valueOf(dis.readByte());
                         switch (packet) {
                             case PING: {
+                                recordInbound(packet);
                                 sendPong(localerDos);
                                 break;
                             }
                             case PONG: {
+                                recordInbound(packet);
                                 break;
                             }
                             case SERVER_ONLINE: {
                                 String server = dis.readUTF();
+                                TrafficRecorder recorder = GlobalClient.this.recorder;
+                                if (recorder != null) {
+                                    recorder.recordServer(packet, server, System.nanoTime());
+                                }
                                 runInMainThread(new Runnable() {
                                     @Override
                                     public void run() {
-                                        if (connection == ClientThread.this) {
-                                            setServerOnline(server);
-                                        }
+                                        runIfCurrent(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                setServerOnline(server);
+                                            }
+                                        });
                                     }
                                 });
                                 break;
                             }
                             case SERVER_OFFLINE: {
                                 String server = dis.readUTF();
+                                TrafficRecorder recorder = GlobalClient.this.recorder;
+                                if (recorder != null) {
+                                    recorder.recordServer(packet, server, System.nanoTime());
+                                }
+                                presence.flushPendingLeaves(server);
                                 runInMainThread(new Runnable() {
                                     @Override
                                     public void run() {
-                                        if (connection == ClientThread.this) {
-                                            setServerOffine(server);
-                                        }
+                                        runIfCurrent(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                setServerOffine(server);
+                                            }
+                                        });
                                     }
                                 });
                                 break;
@@ -255,15 +550,12 @@ public abstract class GlobalClient implements ConnectionAPI {
                                 UUID uuid = new UUID(mostSigBits, leastSigBits);
                                 String name = dis.readUTF();
                                 long joinTime = dis.readLong();
+                                TrafficRecorder recorder = GlobalClient.this.recorder;
+                                if (recorder != null) {
+                                    recorder.recordPlayerOnline(true, server, uuid, name, joinTime, System.nanoTime());
+                                }
 
-                                runInMainThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (connection == ClientThread.this) {
-                                            setPlayerOnline(server, uuid, name, joinTime);
-                                        }
-                                    }
-                                });
+                                presence.handlePlayerOnline(server, uuid, name, joinTime);
                                 break;
                             }
                             case PLAYER_OFFLINE:
@@ -273,14 +565,11 @@ public abstract class GlobalClient implements ConnectionAPI {
                                 long mostSigBits = dis.readLong();
                                 long leastSigBits = dis.readLong();
                                 UUID uuid = new UUID(mostSigBits, leastSigBits);
-                                runInMainThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (connection == ClientThread.this) {
-                                            setPlayerOffline(server, uuid);
-                                        }
-                                    }
-                                });
+                                TrafficRecorder recorder = GlobalClient.this.recorder;
+                                if (recorder != null) {
+                                    recorder.recordPlayerOffline(true, server, uuid, System.nanoTime());
+                                }
+                                presence.handlePlayerOffline(server, uuid);
                                 break;
                             }
                             case DATA: {
@@ -300,52 +589,49 @@ public abstract class GlobalClient implements ConnectionAPI {
                                 int dataSize = dis.readInt();
                                 if (dataSize > 10_000_000 || dataSize < 0) {
                                     // 10 mb
-                                    throw new IOException("Oversized data packet received from '" + account + "' from " + socket.getInetAddress().getHostAddress() + " (" + dataSize + " bytes).");
+                                    throw new IOException("Oversized data packet received from '" + connectAccount + "' from " + socket.getInetAddress().getHostAddress() + " (" + dataSize + " bytes).");
                                 }
                                 byte[] data = new byte[dataSize];
                                 dis.readFully(data);
-                                final UUID finalTargetUuid = targetUuid;
-                                final String finalTargetServer = targetServer;
-                                // processDataAsync(source, channel, targetUuid, targetServer, data);
-                                runInMainThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        if (connection == ClientThread.this) {
-                                            GlobalServer source = getServer(server);
-                                            GlobalPlayer targetPlayer = finalTargetUuid == null ? null : getPlayer(finalTargetUuid);
-                                            GlobalServer targetServer = finalTargetServer == null ? null : getServer(finalTargetServer);
-
-                                            processData(source, channel, targetPlayer, targetServer, data);
+                                TrafficRecorder recorder = GlobalClient.this.recorder;
+                                if (recorder != null) {
+                                    recorder.recordData(true, server, channel, flags, targetUuid, targetServer, data, 0, data.length, System.nanoTime());
+                                }
+                                Runnable delivery = prepareDataDelivery(server, channel, targetUuid, targetServer, data);
+                                if (delivery != null) {
+                                    runInMainThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (connection == ClientThread.this) {
+                                                delivery.run();
+                                            }
                                         }
-                                    }
-                                });
+                                    });
+                                }
                                 break;
                             }
                         }
                     }
 
                 } catch (IOException e) {
+                    synchronized (GlobalClient.this) {
+                        if (localerDos != null && dos == localerDos) {
+                            dos = null;
+                        }
+                        localDos = null;
+                    }
                     localerDos = null;
-                    if (e instanceof ConnectException) {
+                    ReconnectPolicy.Reason reason = null;
+                    if (e instanceof ConnectException || (socket != null && !socket.isConnected())) {
                         logger.severe("Could not connect to the server!");
-                        // wait some time before retry
-                        try {
-                            Thread.sleep(10000);
-                        } catch (InterruptedException e2) {
-                            Thread.currentThread().interrupt();
-                        }
+                        reason = ReconnectPolicy.Reason.CONNECT_FAILED;
                     } else if ((running && threadRunning) || !(e instanceof SocketException)) {
                         if ("Connection reset".equals(e.getMessage()) || (e instanceof EOFException)) {
                             logger.warning("Lost connection to the server!");
                         } else {
                             logger.log(Level.SEVERE, "Exception while reading from the server", e);
                         }
-                        // wait some time before retry
-                        try {
-                            Thread.sleep(5000);
-                        } catch (InterruptedException e2) {
-                            Thread.currentThread().interrupt();
-                        }
+                        reason = ReconnectPolicy.Reason.CONNECTION_LOST;
                     }
                     if (socket != null) {
                         try {
@@ -356,14 +642,80 @@ public abstract class GlobalClient implements ConnectionAPI {
                         socket = null;
                     }
                     dis = null;
-                    localDos = null;
+                    presence.flushPendingLeaves(null);
                     runInMainThread(closingConnectionRunnable);
-                } catch (NoSuchAlgorithmException e) {
-                    throw new Error(e); // impossible
+                    if (reason != null) {
+                        // wait some time before retry
+                        awaitReconnect(reason);
+                    }
+                }
+            }
+            // shutdown does not close a socket that was created after it was called
+            Socket localSocket = socket;
+            if (localSocket != null) {
+                try {
+                    localSocket.close();
+                } catch (IOException e) {
+                    // ignored
                 }
             }
         }
 
+        /**
+         * Applies a change if this is still the current connection. The check and the change are made while holding the
+         * client lock, so a connection replaced in between cannot change the state of the new one.
+         */
+        private void runIfCurrent(Runnable change) {
+            synchronized (GlobalClient.this) {
+                if (connection != ClientThread.this) {
+                    return;
+                }
+                change.run();
+            }
+            publishEvents();
+        }
+
+        private void awaitReconnect(ReconnectPolicy.Reason reason) {
+            ReconnectPolicy policy = reconnectPolicy;
+            if (connectedSince != 0 && System.nanoTime() - connectedSince >= TimeUnit.MILLISECONDS.toNanos(policy.getStableConnectionMillis())) {
+                failedAttempts = 0;
+                previousDelay = 0;
+            }
+            connectedSince = 0;
+            failedAttempts++;
+            long delay = Math.max(0, policy.getDelay(reason, failedAttempts, previousDelay));
+            previousDelay = delay;
+            lastReconnectReason = reason;
+            reconnectAttempts = failedAttempts;
+            if (delay > 0) {
+                logger.info("Reconnecting in " + delay + " ms (attempt " + failedAttempts + ")");
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            nextReconnectMillis = System.currentTimeMillis() + delay;
+            synchronized (reconnectLock) {
+                while (running && threadRunning && !reconnectRequested) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(reconnectLock, wait);
+                    } catch (InterruptedException e) {
+                        // shutdown or setServer, checked by the loop
+                    }
+                }
+                reconnectRequested = false;
+            }
+            nextReconnectMillis = 0;
+        }
+
+        private void reconnectNow() {
+            synchronized (reconnectLock) {
+                reconnectRequested = true;
+                reconnectLock.notifyAll();
+            }
+        }
+
         public void shutdown() {
             logger.log(Level.INFO, "Closing connection!");
             threadRunning = false;
@@ -373,6 +725,7 @@ public abstract class GlobalClient implements ConnectionAPI {
                     DataOutputStream dos = this.localDos;
                     if (dos != null) {
                         try {
+                            recordOutbound(ClientPacketType.SERVER_OFFLINE);
                             dos.writeByte(ClientPacketType.SERVER_OFFLINE.ordinal());
                         } catch (Exception e) {
                             logger.log(Level.SEVERE, "Exception sending server offline!", e);
@@ -389,8 +742,278 @@ public abstract class GlobalClient implements ConnectionAPI {
         }
     }
 
+    private void recordInbound(ServerPacketType packet) {
+        TrafficRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordInbound(packet, System.nanoTime());
+        }
+    }
+
+    private void recordOutbound(ClientPacketType packet) {
+        TrafficRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordOutbound(packet, System.nanoTime());
+        }
+    }
+
+    /**
+     * Decodes a received data packet if its channel has a message handler. Decoding is done in the calling thread to
+     * keep this work out of the main thread.
+     *
+     * @return a task that passes the data or message to its handler, to be run in the main thread, or null if the
+     *         message could not be decoded
+     */
+    Runnable prepareDataDelivery(String server, String channel, UUID targetUuid, String targetServer, byte[] receivedData) {
+        diagnosticTap.record(true, server, channel, targetUuid, targetServer, receivedData.length);
+        byte[] data = receivedData;
+        try {
+            if (ReliableDelivery.ACK_CHANNEL.equals(channel)) {
+                reliableDelivery.handleAck(server, data);
+                return null;
+            } else if (reliableDelivery.isReliable(channel)) {
+                data = reliableDelivery.unwrap(server, data);
+                if (data == null) {
+                    // duplicate
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Invalid reliable packet from " + server + " in channel " + channel, e);
+            return null;
+        }
+        return prepareHandlerDelivery(server, channel, targetUuid, targetServer, data);
+    }
+
+    /**
+     * Decodes a replayed data packet like {@link #prepareDataDelivery(String, String, UUID, String, byte[])}, but
+     * without the reliable delivery state: acknowledgements are dropped, the sequence numbers of reliable channels are
+     * removed without duplicate checks and no acknowledgements are sent.
+     */
+    Runnable prepareReplayDelivery(String server, String channel, UUID targetUuid, String targetServer, byte[] receivedData) {
+        if (ReliableDelivery.ACK_CHANNEL.equals(channel)) {
+            return null;
+        }
+        byte[] data = receivedData;
+        if (reliableDelivery.isReliable(channel)) {
+            try {
+                data = ReliableDelivery.strip(data);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Invalid reliable packet from " + server + " in channel " + channel, e);
+                return null;
+            }
+        }
+        return prepareHandlerDelivery(server, channel, targetUuid, targetServer, data);
+    }
+
+    private Runnable prepareHandlerDelivery(String server, String channel, UUID targetUuid, String targetServer, byte[] data) {
+        final byte[] finalData = data;
+        MessageChannel<?> messageChannel = messageChannels.get(channel);
+        Object message = null;
+        if (messageChannel != null && messageChannel.hasHandler()) {
+            try {
+                message = messageChannel.decode(finalData);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Could not decode message from " + server + " in channel " + channel, e);
+                return null;
+            }
+        }
+        final Object finalMessage = message;
+        return new Runnable() {
+            @Override
+            public void run() {
+                GlobalServer source = getServer(server);
+                GlobalPlayer targetPlayer = targetUuid == null ? null : getPlayer(targetUuid);
+                GlobalServer target = targetServer == null ? null : getServer(targetServer);
+
+                if (finalMessage != null) {
+                    messageChannel.deliver(source, targetPlayer, target, finalMessage);
+                } else {
+                    processData(source, channel, targetPlayer, target, finalData);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts writing all sent and received packets to a file. The current servers and players are written first, so
+     * the recording can be replayed into an empty client using {@link TrafficReplayer}. A running recording is stopped.
+     *
+     * @param file
+     *            the file to write to. An existing file is replaced
+     * @param recordPayloads
+     *            true to record the data of data packets, false to only record their size and hash
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    public void startRecording(Path file, boolean recordPayloads) throws IOException {
+        Objects.requireNonNull(file, "file");
+        stopRecording();
+        TrafficRecorder recorder = new TrafficRecorder(logger, file, recordPayloads);
+        TrafficRecorder old;
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (GlobalServer s : servers.values()) {
+                if (!s.getName().equals(account)) {
+                    recorder.recordServer(ServerPacketType.SERVER_ONLINE, s.getName(), now);
+                }
+            }
+            for (GlobalServer s : servers.values()) {
+                if (!s.getName().equals(account)) {
+                    for (GlobalPlayer p : s.getPlayers()) {
+                        recorder.recordPlayerOnline(true, s.getName(), p.getUniqueId(), p.getName(), p.getJoinTime(s), now);
+                    }
+                }
+            }
+            old = this.recorder;
+            this.recorder = recorder;
+        }
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Stops the recording started by {@link #startRecording(Path, boolean)} and waits until it has been written.
+     */
+    public void stopRecording() {
+        TrafficRecorder recorder;
+        synchronized (this) {
+            recorder = this.recorder;
+            this.recorder = null;
+        }
+        if (recorder != null) {
+            // closing waits for the disk, so it is done without holding the client lock
+            recorder.close();
+        }
+    }
+
+    /**
+     * Get the running recording
+     *
+     * @return the recording or null if no recording is running
+     */
+    public TrafficRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Get the tap that keeps the headers of the last data packets and logs unhandled data
+     *
+     * @return the diagnostic tap
+     */
+    public DiagnosticTap getDiagnosticTap() {
+        return diagnosticTap;
+    }
+
+    /**
+     * Applies received player joins and leaves. A leave is reported after the switch window, unless the player joins
+     * another server before, which is reported as a server switch.
+     */
+    abstract class PresenceHandler {
+        private final HashMap<UUID, PendingLeave> pendingLeaves = new HashMap<>();
+
+        /**
+         * Runs a change of the players in the main thread.
+         */
+        abstract void apply(Runnable change);
+
+        void handlePlayerOnline(String server, UUID uuid, String name, long joinTime) {
+            synchronized (pendingLeaves) {
+                PendingLeave pending = pendingLeaves.remove(uuid);
+                if (pending != null) {
+                    pending.timeout.cancel(false);
+                }
+                apply(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pending != null) {
+                            switchPlayerServer(pending.server, uuid, server, name, joinTime);
+                        } else {
+                            setPlayerOnline(server, uuid, name, joinTime);
+                        }
+                    }
+                });
+            }
+        }
+
+        void handlePlayerOffline(String server, UUID uuid) {
+            synchronized (pendingLeaves) {
+                PendingLeave previous = pendingLeaves.remove(uuid);
+                if (previous != null) {
+                    previous.timeout.cancel(false);
+                    dispatchPlayerOffline(previous.server, uuid);
+                }
+                long window = playerSwitchWindowMillis;
+                if (window <= 0) {
+                    dispatchPlayerOffline(server, uuid);
+                    return;
+                }
+                // wait for a join on another server before reporting the leave
+                PendingLeave pending = new PendingLeave(server);
+                try {
+                    pending.timeout = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (pendingLeaves) {
+                                if (pendingLeaves.remove(uuid, pending)) {
+                                    dispatchPlayerOffline(server, uuid);
+                                }
+                            }
+                        }
+                    }, window, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the client is shutting down
+                    dispatchPlayerOffline(server, uuid);
+                    return;
+                }
+                pendingLeaves.put(uuid, pending);
+            }
+        }
+
+        /**
+         * Reports all delayed leaves of a server or of all servers.
+         *
+         * @param server
+         *            the server or null for all servers
+         */
+        void flushPendingLeaves(String server) {
+            synchronized (pendingLeaves) {
+                Iterator<Entry<UUID, PendingLeave>> it = pendingLeaves.entrySet().iterator();
+                while (it.hasNext()) {
+                    Entry<UUID, PendingLeave> e = it.next();
+                    PendingLeave pending = e.getValue();
+                    if (server == null || server.equals(pending.server)) {
+                        it.remove();
+                        pending.timeout.cancel(false);
+                        dispatchPlayerOffline(pending.server, e.getKey());
+                    }
+                }
+            }
+        }
+
+        private void dispatchPlayerOffline(String server, UUID uuid) {
+            apply(new Runnable() {
+                @Override
+                public void run() {
+                    setPlayerOffline(server, uuid);
+                }
+            });
+        }
+    }
+
+    private static class PendingLeave {
+        private final String server;
+        private ScheduledFuture<?> timeout;
+
+        public PendingLeave(String server) {
+            this.server = server;
+        }
+    }
+
     protected synchronized void sendClientsFromThisServer(DataOutputStream dos) {
         this.dos = dos;
+        // changes may have been missed while disconnected
+        snapshotsRequested = false;
         for (GlobalServer s : servers.values()) {
             if (s.getName().equals(account)) {
                 for (GlobalPlayer p : s.getPlayers()) {
@@ -398,14 +1021,163 @@ public abstract class GlobalClient implements ConnectionAPI {
                 }
             }
         }
+        // unacknowledged packets first, receivers drop packets with a lower sequence number than one already received
+        reliableDelivery.retransmit(true);
+        scheduleSpoolDrain();
     }
 
-    protected synchronized void clearServersAndPlayers() {
-        dos = null;
-        for (GlobalServer s : new ArrayList<>(servers.values())) {
-            if (account == null || !account.equals(s.getName())) {
-                setServerOffine(s.getName());
+    /**
+     * Starts sending the spooled packets in the scheduler thread, if there are any. Must be called while holding the
+     * lock of this client.
+     */
+    private void scheduleSpoolDrain() {
+        if (spoolDraining || dos == null || spool == null || !spool.hasPending()) {
+            return;
+        }
+        try {
+            scheduler.execute(spoolDrainTask);
+            spoolDraining = true;
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+        }
+    }
+
+    /**
+     * Checks if spooled packets are being sent. Must be called while holding the lock of this client.
+     */
+    boolean isDrainingSpool() {
+        return spoolDraining;
+    }
+
+    /**
+     * Sends the next batch of spooled packets. The batch is read from the spool without holding the lock of this
+     * client, the lock is only held while the batch is written, so other packets can be sent between the batches. The
+     * next batch is not read before the previous one has been written.
+     *
+     * @return true if a batch was sent, false if the spool is empty or the client is not connected
+     */
+    private boolean drainSpoolBatch() {
+        synchronized (spoolDrainLock) {
+            OutboundSpool spool;
+            synchronized (this) {
+                spool = this.spool;
+                if (spool == null || dos == null) {
+                    return false;
+                }
             }
+            OutboundSpool.Batch batch = spool.readBatch();
+            if (batch == null) {
+                return false;
+            }
+            synchronized (this) {
+                DataOutputStream dos = this.dos;
+                if (dos == null || this.spool != spool) {
+                    // the batch is sent again after the next connect
+                    return false;
+                }
+                try {
+                    dos.write(batch.getData());
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Exception sending spooled data!", e);
+                    spoolDraining = false;
+                    return false;
+                }
+                spool.commit(batch);
+                recordSentFrames(batch.getData(), batch.getData().length);
+            }
+            return true;
+        }
+    }
+
+    protected void clearServersAndPlayers() {
+        synchronized (this) {
+            dos = null;
+            clearRemoteServers();
+        }
+        publishEvents();
+    }
+
+    /**
+     * Checks that the servers and players are consistent with each other: every player is on at least one server,
+     * servers and players reference each other, and every server has a unique index. This is meant for tests that
+     * change the state from several threads.
+     *
+     * @throws IllegalStateException
+     *             if the state is inconsistent
+     */
+    protected synchronized void checkState() {
+        if (account != null && !servers.containsKey(account)) {
+            throw new IllegalStateException("This server " + account + " is not online");
+        }
+        BitSet indices = new BitSet();
+        for (GlobalServer server : servers.values()) {
+            int index = server.getIndex();
+            if (index < 0 || indices.get(index) || !usedServerIndices.get(index)) {
+                throw new IllegalStateException("Server " + server + " has an invalid index " + index);
+            }
+            indices.set(index);
+            for (GlobalPlayer player : server.getPlayers()) {
+                if (players.get(player.getUniqueId()) != player) {
+                    throw new IllegalStateException("Player " + player + " on server " + server + " is not online");
+                }
+                if (!player.isOnServer(server)) {
+                    throw new IllegalStateException("Player " + player + " does not know that they are on server " + server);
+                }
+            }
+        }
+        if (!indices.equals(usedServerIndices)) {
+            throw new IllegalStateException("Server indices " + usedServerIndices + " are used, but servers have " + indices);
+        }
+        for (GlobalPlayer player : players.values()) {
+            List<GlobalServer> playerServers = player.getCurrentServers();
+            if (playerServers.isEmpty()) {
+                throw new IllegalStateException("Player " + player + " is not on any server");
+            }
+            long lastJoinTime = Long.MAX_VALUE;
+            for (GlobalServer server : playerServers) {
+                if (servers.get(server.getName()) != server) {
+                    throw new IllegalStateException("Player " + player + " is on server " + server + " that is not online");
+                }
+                if (!server.getPlayers().contains(player)) {
+                    throw new IllegalStateException("Server " + server + " does not know that player " + player + " is on it");
+                }
+                long joinTime = player.getJoinTime(server);
+                if (joinTime > lastJoinTime) {
+                    throw new IllegalStateException("Servers of player " + player + " are not ordered by join time");
+                }
+                lastJoinTime = joinTime;
+            }
+        }
+    }
+
+    /**
+     * Removes all servers except this one. Unlike {@link #clearServersAndPlayers()} this keeps the output stream, which
+     * may already belong to a new connection.
+     */
+    void clearRemoteServers() {
+        synchronized (this) {
+            for (GlobalServer s : new ArrayList<>(servers.values())) {
+                if (account == null || !account.equals(s.getName())) {
+                    setServerOffine(s.getName());
+                }
+            }
+        }
+        publishEvents();
+    }
+
+    /**
+     * Sends a ping if the last one was sent at least {@value #PING_INTERVAL_MILLIS} milliseconds ago. Nothing is sent
+     * while the previous ping is still being sent, for example because another thread is blocked while writing.
+     */
+    private void pingIfDue(long now) {
+        if (dos == null || now - lastPingNanos < TimeUnit.MILLISECONDS.toNanos(PING_INTERVAL_MILLIS) || !pingPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastPingNanos = now;
+            sendPing();
+        } finally {
+            pingPending.set(false);
         }
     }
 
@@ -413,6 +1185,7 @@ public abstract class GlobalClient implements ConnectionAPI {
         DataOutputStream dos = this.dos;
         if (dos != null) {
             try {
+                recordOutbound(ClientPacketType.PING);
                 dos.writeByte(ClientPacketType.PING.ordinal());
             } catch (Exception e) {
                 logger.log(Level.SEVERE, "Exception sending ping!", e);
@@ -434,6 +1207,7 @@ public abstract class GlobalClient implements ConnectionAPI {
     protected synchronized void sendPong(DataOutputStream dos) {
         if (dos != null) {
             try {
+                recordOutbound(ClientPacketType.PONG);
                 dos.writeByte(ClientPacketType.PONG.ordinal());
             } catch (Exception e) {
                 logger.log(Level.SEVERE, "Exception sending pong!", e);
@@ -442,110 +1216,389 @@ public abstract class GlobalClient implements ConnectionAPI {
     }
 
     protected void processData(GlobalServer source, String channel, GlobalPlayer targetPlayer, GlobalServer targetServer, byte[] data) {
-        logger.info("Data from " + source + " in Channel " + channel + " to " + targetPlayer + "; " + targetServer + " Data: " + bytesToHexString(data));
+        diagnosticTap.logUnhandled(logger, source, channel, targetPlayer, targetServer, data);
     }
 
     public static String bytesToHexString(byte[] bytes) {
-        StringBuffer hexString = new StringBuffer(bytes.length * 2);
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xff & bytes[i]);
-            if (hex.length() == 1) {
-                hexString.append('0');
+        StringBuilder hexString = new StringBuilder(bytes.length * 2);
+        DiagnosticTap.appendHex(hexString, bytes, 0, bytes.length);
+        return hexString.toString();
+    }
+
+    protected void setPlayerOffline(String server, UUID uuid) {
+        synchronized (this) {
+            if (!servers.containsKey(server)) {
+                throw new IllegalArgumentException("Server " + server + " is not online.");
             }
-            hexString.append(hex);
+            GlobalServer globalServer = servers.get(server);
+            GlobalPlayer player = players.get(uuid);
+            boolean leftTheNetwork = false;
+            if (player == null) {
+                throw new IllegalArgumentException("Player " + uuid + " is not online.");
+            } else if (!player.isOnServer(globalServer)) {
+                throw new IllegalArgumentException("Player " + uuid + " is not on server " + server + ".");
+            }
+            player.removeServer(globalServer);
+            if (!player.isOnAnyServer()) {
+                players.remove(uuid);
+                leftTheNetwork = true;
+            }
+
+            globalServer.removePlayer(uuid);
+            queueEvent(new PlayerDisconnectedEvent(globalServer, player, leftTheNetwork, player.getCurrentServers()));
+            onPlayerDisconnected(globalServer, player, leftTheNetwork);
         }
-        return hexString.toString();
+        publishEvents();
     }
 
-    protected synchronized void setPlayerOffline(String server, UUID uuid) {
-        if (!servers.containsKey(server)) {
-            throw new IllegalArgumentException("Server " + server + " is not online.");
+    protected void setPlayerOnline(String server, UUID uuid, String name, long joinTime) {
+        synchronized (this) {
+            if (!servers.containsKey(server)) {
+                throw new IllegalArgumentException("Server " + server + " is not online.");
+            }
+            GlobalServer globalServer = servers.get(server);
+            GlobalPlayer player = players.get(uuid);
+            boolean joinedTheNetwork = false;
+            if (player == null) {
+                player = new GlobalPlayer(this, uuid, name, globalServer, joinTime);
+                players.put(uuid, player);
+                joinedTheNetwork = true;
+            } else if (player.isOnServer(globalServer)) {
+                throw new IllegalArgumentException("Player " + uuid + " is already on server " + server + ".");
+            } else {
+                player.addServer(globalServer, joinTime);
+            }
+            globalServer.addPlayer(player);
+            queueEvent(new PlayerJoinedEvent(globalServer, player, joinedTheNetwork, joinTime, player.getCurrentServers()));
+            onPlayerJoined(globalServer, player, joinedTheNetwork);
         }
-        GlobalServer globalServer = servers.get(server);
-        GlobalPlayer player = players.get(uuid);
-        boolean leftTheNetwork = false;
-        if (player == null) {
-            throw new IllegalArgumentException("Player " + uuid + " is not online.");
-        } else if (!player.isOnServer(globalServer)) {
-            throw new IllegalArgumentException("Player " + uuid + " is not on server " + server + ".");
+        publishEvents();
+    }
+
+    protected void switchPlayerServer(String fromServer, UUID uuid, String toServer, String name, long joinTime) {
+        synchronized (this) {
+            GlobalServer from = servers.get(fromServer);
+            if (from == null) {
+                throw new IllegalArgumentException("Server " + fromServer + " is not online.");
+            }
+            GlobalServer to = servers.get(toServer);
+            if (to == null) {
+                throw new IllegalArgumentException("Server " + toServer + " is not online.");
+            }
+            GlobalPlayer player = players.get(uuid);
+            if (player == null) {
+                throw new IllegalArgumentException("Player " + uuid + " is not online.");
+            } else if (!player.isOnServer(from)) {
+                throw new IllegalArgumentException("Player " + uuid + " is not on server " + fromServer + ".");
+            } else if (from != to && player.isOnServer(to)) {
+                throw new IllegalArgumentException("Player " + uuid + " is already on server " + toServer + ".");
+            }
+            player.removeServer(from);
+            from.removePlayer(uuid);
+            player.addServer(to, joinTime);
+            to.addPlayer(player);
+            if (from != to) {
+                queueEvent(new PlayerSwitchedServerEvent(player, from, to, joinTime, player.getCurrentServers()));
+                onPlayerSwitchedServer(player, from, to);
+            }
         }
-        player.removeServer(globalServer);
-        if (!player.isOnAnyServer()) {
-            players.remove(uuid);
-            leftTheNetwork = true;
+        publishEvents();
+    }
+
+    /**
+     * Called when a player left a server and joined another server within the window set by
+     * {@link #setPlayerSwitchWindow(long)}, while holding the client lock. The default implementation reports it as a
+     * disconnect followed by a join.
+     *
+     * @param player
+     *            the player
+     * @param from
+     *            the server the player left
+     * @param to
+     *            the server the player joined
+     */
+    protected void onPlayerSwitchedServer(GlobalPlayer player, GlobalServer from, GlobalServer to) {
+        onPlayerDisconnected(from, player, false);
+        onPlayerJoined(to, player, false);
+    }
+
+    /**
+     * Registers a listener for the events of this client. Unlike the abstract methods of this class, listeners are
+     * called without holding the client lock.
+     *
+     * @param listener
+     *            the listener
+     * @param delivery
+     *            where the events are delivered
+     */
+    public synchronized void addListener(GlobalListener listener, GlobalListener.Delivery delivery) {
+        Objects.requireNonNull(listener, "listener");
+        Objects.requireNonNull(delivery, "delivery");
+        if (delivery == GlobalListener.Delivery.ASYNC && eventExecutors == null) {
+            eventExecutors = new ThreadPoolExecutor[EVENT_THREADS];
+            for (int i = 0; i < EVENT_THREADS; i++) {
+                String threadName = "GlobalConnectionEvents-" + i;
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, SCHEDULER_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, threadName);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+                eventExecutors[i] = executor;
+            }
         }
+        listeners.add(new RegisteredListener(listener, delivery));
+    }
 
-        globalServer.removePlayer(uuid);
-        onPlayerDisconnected(globalServer, player, leftTheNetwork);
+    /**
+     * Removes a listener. Events that are already queued for it may still be delivered.
+     *
+     * @param listener
+     *            the listener
+     */
+    public void removeListener(GlobalListener listener) {
+        for (RegisteredListener registered : listeners) {
+            if (registered.listener == listener) {
+                listeners.remove(registered);
+            }
+        }
     }
 
-    protected synchronized void setPlayerOnline(String server, UUID uuid, String name, long joinTime) {
-        if (!servers.containsKey(server)) {
-            throw new IllegalArgumentException("Server " + server + " is not online.");
+    /**
+     * Queues an event. Must be called while holding the client lock, so events are queued in the order the state was
+     * changed.
+     */
+    private void queueEvent(GlobalEvent event) {
+        if (!listeners.isEmpty()) {
+            synchronized (pendingEvents) {
+                pendingEvents.add(event);
+            }
         }
-        GlobalServer globalServer = servers.get(server);
-        GlobalPlayer player = players.get(uuid);
-        boolean joinedTheNetwork = false;
-        if (player == null) {
-            player = new GlobalPlayer(this, uuid, name, globalServer, joinTime);
-            players.put(uuid, player);
-            joinedTheNetwork = true;
-        } else if (player.isOnServer(globalServer)) {
-            throw new IllegalArgumentException("Player " + uuid + " is already on server " + server + ".");
-        } else {
-            player.addServer(globalServer, joinTime);
+    }
+
+    /**
+     * Delivers the queued events. Does nothing while the current thread holds the client lock, the outermost method
+     * publishes them after releasing it. If another thread is already publishing, it delivers the events, so the order
+     * is kept. Events are taken while holding the client lock, so events of a change that another thread is still
+     * making are not delivered before the change is complete.
+     */
+    private void publishEvents() {
+        if (Thread.holdsLock(this)) {
+            return;
+        }
+        synchronized (pendingEvents) {
+            if (publishingEvents) {
+                return;
+            }
+            publishingEvents = true;
+        }
+        boolean drained = false;
+        ArrayList<GlobalEvent> events = null;
+        int next = 0;
+        try {
+            while (true) {
+                synchronized (this) {
+                    synchronized (pendingEvents) {
+                        if (pendingEvents.isEmpty()) {
+                            publishingEvents = false;
+                            drained = true;
+                            return;
+                        }
+                        events = new ArrayList<>(pendingEvents);
+                        pendingEvents.clear();
+                    }
+                }
+                for (next = 0; next < events.size(); next++) {
+                    deliverEvent(events.get(next));
+                }
+            }
+        } finally {
+            if (!drained) {
+                // a listener threw an error, the next call delivers the events after the failed one
+                synchronized (pendingEvents) {
+                    if (events != null) {
+                        for (int i = events.size() - 1; i > next; i--) {
+                            pendingEvents.addFirst(events.get(i));
+                        }
+                    }
+                    publishingEvents = false;
+                }
+            }
+        }
+    }
+
+    private void deliverEvent(GlobalEvent event) {
+        for (RegisteredListener registered : listeners) {
+            switch (registered.delivery) {
+                case SYNC:
+                    dispatchEvent(registered.listener, event);
+                    break;
+                case MAIN_THREAD:
+                    runInMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            dispatchEvent(registered.listener, event);
+                        }
+                    });
+                    break;
+                case ASYNC:
+                    ThreadPoolExecutor[] executors = eventExecutors;
+                    try {
+                        executors[Math.floorMod(eventKey(event).hashCode(), executors.length)].execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                dispatchEvent(registered.listener, event);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // the client is shutting down
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Get the key that selects the thread for asynchronous delivery. All events of a player use the same thread.
+     */
+    private static Object eventKey(GlobalEvent event) {
+        if (event instanceof PlayerJoinedEvent e) {
+            return e.player().getUniqueId();
+        } else if (event instanceof PlayerDisconnectedEvent e) {
+            return e.player().getUniqueId();
+        } else if (event instanceof PlayerSwitchedServerEvent e) {
+            return e.player().getUniqueId();
+        } else if (event instanceof ServerConnectedEvent e) {
+            return e.server().getName();
+        } else if (event instanceof ServerDisconnectedEvent e) {
+            return e.server().getName();
+        }
+        throw new IllegalArgumentException("Unknown event " + event);
+    }
+
+    private void dispatchEvent(GlobalListener listener, GlobalEvent event) {
+        try {
+            if (event instanceof PlayerJoinedEvent e) {
+                listener.onPlayerJoined(e);
+            } else if (event instanceof PlayerDisconnectedEvent e) {
+                listener.onPlayerDisconnected(e);
+            } else if (event instanceof PlayerSwitchedServerEvent e) {
+                listener.onPlayerSwitchedServer(e);
+            } else if (event instanceof ServerConnectedEvent e) {
+                listener.onServerConnected(e);
+            } else if (event instanceof ServerDisconnectedEvent e) {
+                listener.onServerDisconnected(e);
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Exception in listener " + listener + "!", e);
+        }
+    }
+
+    private static class RegisteredListener {
+        private final GlobalListener listener;
+        private final GlobalListener.Delivery delivery;
+
+        public RegisteredListener(GlobalListener listener, GlobalListener.Delivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
         }
-        globalServer.addPlayer(player);
-        onPlayerJoined(globalServer, player, joinedTheNetwork);
     }
 
+    /**
+     * Called when a player joined a server. Like the other callbacks of this class, this is called while holding the
+     * client lock, so the state cannot change while it runs. Use
+     * {@link #addListener(GlobalListener, GlobalListener.Delivery)} to be notified without holding the lock.
+     */
     protected abstract void onPlayerJoined(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork);
 
+    /**
+     * Called when a player left a server, while holding the client lock.
+     */
     protected abstract void onPlayerDisconnected(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork);
 
+    /**
+     * Called when a server went offline, while holding the client lock.
+     */
     protected abstract void onServerDisconnected(GlobalServer server);
 
+    /**
+     * Called when a server came online, while holding the client lock.
+     */
     protected abstract void onServerConnected(GlobalServer server);
 
-    protected synchronized void setServerOffine(String server) {
-        if (!servers.containsKey(server)) {
-            throw new IllegalArgumentException("Server " + server + " is not online.");
-        }
-        GlobalServer offline = servers.get(server);
-        for (GlobalPlayer player : new ArrayList<>(offline.getPlayers())) {
-            player.removeServer(offline);
-            boolean leftTheNetwork = false;
-            if (!player.isOnAnyServer()) {
-                players.remove(player.getUniqueId());
-                leftTheNetwork = true;
+    protected void setServerOffine(String server) {
+        synchronized (this) {
+            if (!servers.containsKey(server)) {
+                throw new IllegalArgumentException("Server " + server + " is not online.");
+            }
+            GlobalServer offline = servers.get(server);
+            for (GlobalPlayer player : new ArrayList<>(offline.getPlayers())) {
+                player.removeServer(offline);
+                boolean leftTheNetwork = false;
+                if (!player.isOnAnyServer()) {
+                    players.remove(player.getUniqueId());
+                    leftTheNetwork = true;
+                }
+                queueEvent(new PlayerDisconnectedEvent(offline, player, leftTheNetwork, player.getCurrentServers()));
+                onPlayerDisconnected(offline, player, leftTheNetwork);
             }
-            onPlayerDisconnected(offline, player, leftTheNetwork);
+            servers.remove(server);
+            if (dos != null) {
+                // while disconnected all servers are removed, but unacknowledged packets are sent again after the reconnect
+                reliableDelivery.onServerOffline(server);
+            }
+            usedServerIndices.clear(offline.getIndex());
+            offline.releaseIndex();
+            queueEvent(new ServerDisconnectedEvent(offline));
+            onServerDisconnected(offline);
         }
-        servers.remove(server);
-        onServerDisconnected(offline);
+        publishEvents();
     }
 
-    protected synchronized void setServerOnline(String server) {
-        if (servers.containsKey(server)) {
-            throw new IllegalArgumentException("Server " + server + " is already online.");
+    protected void setServerOnline(String server) {
+        synchronized (this) {
+            if (servers.containsKey(server)) {
+                throw new IllegalArgumentException("Server " + server + " is already online.");
+            }
+            int index = usedServerIndices.nextClearBit(0);
+            usedServerIndices.set(index);
+            GlobalServer joined = new GlobalServer(this, server, index);
+            servers.put(server, joined);
+            if (!server.equals(account) && dos != null && !snapshotsRequested) {
+                // one snapshot is enough, every server has the changes of all servers
+                snapshotsRequested = true;
+                for (ReplicatedCache<?> cache : caches.values()) {
+                    cache.requestSnapshot(joined);
+                }
+            }
+            queueEvent(new ServerConnectedEvent(joined));
+            onServerConnected(joined);
         }
-        GlobalServer joined = new GlobalServer(this, server);
-        servers.put(server, joined);
-        onServerConnected(joined);
+        publishEvents();
     }
 
-    protected synchronized void onPlayerOnline(UUID uuid, String name, long joinTime) {
-        Objects.requireNonNull(uuid, "uuid");
-        Objects.requireNonNull(name, "name");
-        setPlayerOnline(account, uuid, name, joinTime);
+    protected void onPlayerOnline(UUID uuid, String name, long joinTime) {
+        synchronized (this) {
+            Objects.requireNonNull(uuid, "uuid");
+            Objects.requireNonNull(name, "name");
+            setPlayerOnline(account, uuid, name, joinTime);
 
-        sendPlayerOnline(uuid, name, joinTime);
+            sendPlayerOnline(uuid, name, joinTime);
+        }
+        publishEvents();
     }
 
     private void sendPlayerOnline(UUID uuid, String name, long joinTime) {
         DataOutputStream dos = this.dos;
         if (dos != null) {
             try {
+                TrafficRecorder recorder = this.recorder;
+                if (recorder != null) {
+                    recorder.recordPlayerOnline(false, null, uuid, name, joinTime, System.nanoTime());
+                }
                 dos.writeByte(ClientPacketType.PLAYER_ONLINE.ordinal());
                 dos.writeLong(uuid.getMostSignificantBits());
                 dos.writeLong(uuid.getLeastSignificantBits());
@@ -557,20 +1610,27 @@ public abstract class GlobalClient implements ConnectionAPI {
         }
     }
 
-    protected synchronized void onPlayerOffline(UUID uuid) {
-        Objects.requireNonNull(uuid, "uuid");
-        setPlayerOffline(account, uuid);
+    protected void onPlayerOffline(UUID uuid) {
+        synchronized (this) {
+            Objects.requireNonNull(uuid, "uuid");
+            setPlayerOffline(account, uuid);
 
-        DataOutputStream dos = this.dos;
-        if (dos != null) {
-            try {
-                dos.writeByte(ClientPacketType.PLAYER_OFFLINE.ordinal());
-                dos.writeLong(uuid.getMostSignificantBits());
-                dos.writeLong(uuid.getLeastSignificantBits());
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "Exception sending player offline!", e);
+            DataOutputStream dos = this.dos;
+            if (dos != null) {
+                try {
+                    TrafficRecorder recorder = this.recorder;
+                    if (recorder != null) {
+                        recorder.recordPlayerOffline(false, null, uuid, System.nanoTime());
+                    }
+                    dos.writeByte(ClientPacketType.PLAYER_OFFLINE.ordinal());
+                    dos.writeLong(uuid.getMostSignificantBits());
+                    dos.writeLong(uuid.getLeastSignificantBits());
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Exception sending player offline!", e);
+                }
             }
         }
+        publishEvents();
     }
 
     @Override
@@ -586,51 +1646,562 @@ public abstract class GlobalClient implements ConnectionAPI {
     protected synchronized void sendData(String channel, UUID targetUuid, String targetServer, byte[] data, boolean sendToAll, boolean sendToRestricted) {
         Objects.requireNonNull(channel, "channel");
         Objects.requireNonNull(data, "data");
-        byte[] dataClone = data.clone();
+        if (closing) {
+            rejectedSends++;
+            return;
+        }
+        ChannelSendState sendState = sendStates.get(channel);
+        if (sendState != null) {
+            sendState.submit(new OutboundData(channel, targetUuid, targetServer, data.clone(), sendToAll, sendToRestricted));
+            return;
+        }
+        writeData(channel, targetUuid, targetServer, data, sendToAll, sendToRestricted);
+    }
+
+    /**
+     * @return true if the packet was sent or spooled
+     */
+    synchronized boolean writeData(OutboundData message) {
+        return writeData(message.channel, message.targetUuid, message.targetServer, message.data, message.sendToAll, message.sendToRestricted);
+    }
+
+    private boolean writeData(String channel, UUID targetUuid, String targetServer, byte[] data, boolean sendToAll, boolean sendToRestricted) {
+        if (reliableDelivery.isReliable(channel)) {
+            data = reliableDelivery.wrap(channel, targetUuid, targetServer, data, sendToAll, sendToRestricted);
+        }
+        return writeDataFrame(channel, targetUuid, targetServer, data, sendToAll, sendToRestricted, isSpooled(channel));
+    }
+
+    /**
+     * Writes a data packet to the connection without passing it to the reliable delivery. The packet is never spooled.
+     *
+     * @return true if the packet was written to the connection
+     */
+    synchronized boolean writeDataFrame(OutboundData message) {
+        return writeDataFrame(message.channel, message.targetUuid, message.targetServer, message.data, message.sendToAll, message.sendToRestricted, false);
+    }
+
+    private boolean writeDataFrame(String channel, UUID targetUuid, String targetServer, byte[] data, boolean sendToAll, boolean sendToRestricted, boolean spooled) {
         DataOutputStream dos = this.dos;
-        if (dos != null) {
+        if (dos != null || spooled) {
+            MessageOutput frame;
+            try {
+                frame = startDataFrame(channel, targetUuid, targetServer, sendToAll, sendToRestricted);
+                frame.writeInt(data.length);
+                frame.write(data);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception sending data!", e);
+                return false;
+            }
+            diagnosticTap.record(false, null, channel, targetUuid, targetServer, data.length);
+            return sendFrame(dos, frame, spooled);
+        }
+        return false;
+    }
+
+    /**
+     * Sends a typed message to all servers. The channel must have been registered using
+     * {@link #registerMessageChannel(String, MessageCodec, MessageHandler)}. This message will not be sent to restriced
+     * servers.
+     *
+     * @param channel
+     *            the channel to use. may not be null
+     * @param message
+     *            the message to send. may not be null
+     * @throws IllegalArgumentException
+     *             if no codec is registered for the channel
+     */
+    public <T> void sendMessage(String channel, T message) {
+        sendMessage(channel, message, false);
+    }
+
+    /**
+     * Sends a typed message to all servers. The channel must have been registered using
+     * {@link #registerMessageChannel(String, MessageCodec, MessageHandler)}.
+     *
+     * @param channel
+     *            the channel to use. may not be null
+     * @param message
+     *            the message to send. may not be null
+     * @param sendToRestricted
+     *            send this message to restricted servers too.
+     * @throws IllegalArgumentException
+     *             if no codec is registered for the channel
+     */
+    public <T> void sendMessage(String channel, T message, boolean sendToRestricted) {
+        sendMessage(channel, null, null, message, false, sendToRestricted);
+    }
+
+    protected synchronized <T> void sendMessage(String channel, UUID targetUuid, String targetServer, T message, boolean sendToAll, boolean sendToRestricted) {
+        Objects.requireNonNull(channel, "channel");
+        Objects.requireNonNull(message, "message");
+        if (closing) {
+            rejectedSends++;
+            return;
+        }
+        MessageCodec<T> codec = getCodec(channel);
+        ChannelSendState sendState = sendStates.get(channel);
+        if (sendState != null || reliableDelivery.isReliable(channel)) {
+            MessageOutput out = new MessageOutput();
+            try {
+                codec.encode(message, out);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception encoding message!", e);
+                return;
+            }
+            if (sendState != null) {
+                sendState.submit(new OutboundData(channel, targetUuid, targetServer, out.toByteArray(), sendToAll, sendToRestricted));
+            } else {
+                writeData(channel, targetUuid, targetServer, out.toByteArray(), sendToAll, sendToRestricted);
+            }
+            return;
+        }
+        DataOutputStream dos = this.dos;
+        boolean spooled = isSpooled(channel);
+        if (dos != null || spooled) {
+            MessageOutput frame;
+            int lengthPos;
+            int length;
+            try {
+                frame = startDataFrame(channel, targetUuid, targetServer, sendToAll, sendToRestricted);
+                lengthPos = frame.reserveInt();
+                codec.encode(message, frame);
+                length = frame.size() - lengthPos - 4;
+                frame.setInt(lengthPos, length);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception sending message!", e);
+                return;
+            }
+            diagnosticTap.record(false, null, channel, targetUuid, targetServer, length);
+            sendFrame(dos, frame, spooled);
+        }
+    }
+
+    private MessageOutput startDataFrame(String channel, UUID targetUuid, String targetServer, boolean sendToAll, boolean sendToRestricted) throws IOException {
+        MessageOutput frame = frameBuffer;
+        frame.reset();
+        frame.writeByte(ClientPacketType.DATA.ordinal());
+        frame.writeUTF(channel);
+        frame.writeByte(dataFlags(targetUuid, targetServer, sendToAll, sendToRestricted));
+        if (targetUuid != null) {
+            frame.writeUUID(targetUuid);
+        }
+        if (targetServer != null) {
+            frame.writeUTF(targetServer);
+        }
+        return frame;
+    }
+
+    private static int dataFlags(UUID targetUuid, String targetServer, boolean sendToAll, boolean sendToRestricted) {
+        return (targetUuid != null ? 1 : 0) + (targetServer != null ? 2 : 0) + (sendToRestricted ? 4 : 0) + (sendToAll ? 8 : 0);
+    }
+
+    /**
+     * Writes a data packet to the connection. If that is not possible, the packet is written to the spool. While
+     * spooled packets are being sent, packets of spooled channels are appended to the spool to keep their order.
+     * Spooled packets are recorded when the spool is sent.
+     *
+     * @return true if the frame was sent or spooled
+     */
+    private boolean sendFrame(DataOutputStream dos, MessageOutput frame, boolean spooled) {
+        if (dos != null && !(spooled && spoolDraining)) {
             try {
-                dos.writeByte(ClientPacketType.DATA.ordinal());
-                dos.writeUTF(channel);
-                int flags = (targetUuid != null ? 1 : 0) + (targetServer != null ? 2 : 0) + (sendToRestricted ? 4 : 0) + (sendToAll ? 8 : 0);
-                dos.writeByte(flags);
-                if (targetUuid != null) {
-                    dos.writeLong(targetUuid.getMostSignificantBits());
-                    dos.writeLong(targetUuid.getLeastSignificantBits());
-                }
-                if (targetServer != null) {
-                    dos.writeUTF(targetServer);
-                }
-                dos.writeInt(data.length);
-                dos.write(dataClone);
+                writeFrame(dos, frame);
+                recordSentFrames(frame.getBuffer(), frame.size());
+                return true;
             } catch (Exception e) {
                 logger.log(Level.SEVERE, "Exception sending data!", e);
             }
         }
+        if (spooled) {
+            if (spool.append(frame.getBuffer(), 0, frame.size())) {
+                return true;
+            }
+            logger.warning("Could not spool data packet, the spool is full or the packet is too large.");
+        }
+        return false;
+    }
+
+    private void recordSentFrames(byte[] frames, int length) {
+        TrafficRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordDataFrames(frames, 0, length, System.nanoTime());
+        }
+    }
+
+    private boolean isSpooled(String channel) {
+        return spool != null && spooledChannels.contains(channel);
+    }
+
+    /**
+     * Enables storing data packets that cannot be sent because the client is not connected. They are sent after the
+     * connection has been established again. Only packets in channels enabled by {@link #setSpooled(String, boolean)}
+     * are stored. Packets that were stored in the directory by an earlier spool are sent after the next connect.
+     *
+     * @param directory
+     *            the directory for the spool files
+     * @param maxBytes
+     *            the maximum size of the spool files
+     * @param ttlMillis
+     *            the time in milliseconds after which stored packets are not sent anymore or 0 to send them regardless
+     *            of their age
+     * @throws IOException
+     *             if the directory cannot be created or existing spool files cannot be read
+     */
+    public synchronized void enableSpool(Path directory, long maxBytes, long ttlMillis) throws IOException {
+        Objects.requireNonNull(directory, "directory");
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        disableSpool();
+        spool = new OutboundSpool(logger, directory, (int) Math.min(SPOOL_SEGMENT_SIZE, maxBytes), maxBytes, ttlMillis);
+        scheduleSpoolDrain();
+    }
+
+    /**
+     * Disables the spool. Packets that are still stored are kept on the disk.
+     */
+    public synchronized void disableSpool() {
+        if (spool != null) {
+            spool.close();
+            spool = null;
+            spoolDraining = false;
+        }
+    }
+
+    /**
+     * Get the spool enabled by {@link #enableSpool(Path, long, long)}
+     *
+     * @return the spool or null if no spool is enabled
+     */
+    public synchronized OutboundSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Sets whether data packets in a channel are stored in the spool while the client is not connected.
+     *
+     * @param channel
+     *            the channel. may not be null
+     * @param spooled
+     *            true to store packets of this channel
+     */
+    public synchronized void setSpooled(String channel, boolean spooled) {
+        Objects.requireNonNull(channel, "channel");
+        if (spooled) {
+            spooledChannels.add(channel);
+        } else {
+            spooledChannels.remove(channel);
+        }
+    }
+
+    private void writeFrame(DataOutputStream dos, MessageOutput frame) throws IOException {
+        dos.write(frame.getBuffer(), 0, frame.size());
+        if (frame.size() > MAX_RETAINED_FRAME_BUFFER) {
+            // do not keep huge buffers after sending a large message
+            frameBuffer = new MessageOutput();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> MessageCodec<T> getCodec(String channel) {
+        MessageChannel<?> messageChannel = messageChannels.get(channel);
+        if (messageChannel == null) {
+            throw new IllegalArgumentException("No codec registered for channel " + channel);
+        }
+        return (MessageCodec<T>) messageChannel.getCodec();
+    }
+
+    /**
+     * Sets how messages in a channel are sent. Messages that are held back by the previous policy are sent immediately.
+     *
+     * @param channel
+     *            the channel. may not be null
+     * @param policy
+     *            the new policy or null to send all messages immediately
+     */
+    public synchronized void setSendPolicy(String channel, SendPolicy policy) {
+        Objects.requireNonNull(channel, "channel");
+        ChannelSendState old = sendStates.remove(channel);
+        if (old != null) {
+            old.close();
+        }
+        if (policy != null && (policy.isCoalescing() || policy.isRateLimited())) {
+            sendStates.put(channel, new ChannelSendState(this, scheduler, policy));
+        }
+    }
+
+    /**
+     * Get the policy of a channel
+     *
+     * @param channel
+     *            the channel
+     * @return the policy set by {@link #setSendPolicy(String, SendPolicy)} or {@link SendPolicy#unlimited()}
+     */
+    public synchronized SendPolicy getSendPolicy(String channel) {
+        ChannelSendState sendState = sendStates.get(channel);
+        return sendState == null ? SendPolicy.unlimited() : sendState.getPolicy();
+    }
+
+    /**
+     * Sets whether a channel uses sequenced and acknowledged delivery. Packets in reliable channels are sent again after
+     * a reconnect until the receiving servers have acknowledged them, and duplicates are dropped by the receivers. The
+     * channel has to be reliable on both the sending and the receiving servers. See {@link ReliableDelivery} for
+     * details.
+     *
+     * @param channel
+     *            the channel. may not be null
+     * @param reliable
+     *            true to enable reliable delivery
+     */
+    public void setReliable(String channel, boolean reliable) {
+        Objects.requireNonNull(channel, "channel");
+        if (ReliableDelivery.ACK_CHANNEL.equals(channel)) {
+            throw new IllegalArgumentException("Channel " + channel + " is reserved.");
+        }
+        reliableDelivery.setReliable(channel, reliable);
+    }
+
+    /**
+     * Get the counters of the reliable delivery
+     *
+     * @return the reliable delivery
+     */
+    public ReliableDelivery getReliableDelivery() {
+        return reliableDelivery;
+    }
+
+    /**
+     * Get the counters of a channel since its policy was set
+     *
+     * @param channel
+     *            the channel
+     * @return the counters or null if the channel has no policy
+     */
+    public synchronized SendStatistics getSendStatistics(String channel) {
+        ChannelSendState sendState = sendStates.get(channel);
+        return sendState == null ? null : sendState.getStatistics();
+    }
+
+    /**
+     * Get a cache with byte array values that is replicated to all servers. See {@link ReplicatedCache} for details.
+     *
+     * @param name
+     *            the name of the cache. may not be null
+     * @return the cache
+     */
+    public ReplicatedCache<byte[]> getCache(String name) {
+        return getCache(name, ReplicatedCache.BYTE_ARRAY_CODEC);
+    }
+
+    /**
+     * Get a cache that is replicated to all servers. The cache is created on the first call and has to be created on
+     * every server that uses it. A new cache asks the other servers for their entries. See {@link ReplicatedCache} for
+     * details.
+     *
+     * @param name
+     *            the name of the cache. may not be null
+     * @param valueCodec
+     *            the codec for the values. may not be null
+     * @return the cache
+     * @throws IllegalArgumentException
+     *             if the cache was already created with another codec
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <V> ReplicatedCache<V> getCache(String name, MessageCodec<V> valueCodec) {
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(valueCodec, "valueCodec");
+        ReplicatedCache<?> existing = caches.get(name);
+        if (existing != null) {
+            if (existing.getValueCodec() != valueCodec) {
+                throw new IllegalArgumentException("Cache " + name + " already uses another codec.");
+            }
+            return (ReplicatedCache<V>) existing;
+        }
+        ReplicatedCache<V> cache = new ReplicatedCache<>(this, logger, name, valueCodec);
+        registerMessageChannel(cache.getChannel(), new ReplicatedCache.UpdateCodec<>(valueCodec), new MessageHandler<ReplicatedCache.Update<V>>() {
+            @Override
+            public void handle(GlobalServer source, GlobalPlayer targetPlayer, GlobalServer targetServer, ReplicatedCache.Update<V> message) {
+                cache.handle(source, message);
+            }
+        });
+        if (caches.isEmpty()) {
+            try {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<ReplicatedCache<?>> toCheck;
+                        synchronized (GlobalClient.this) {
+                            toCheck = new ArrayList<>(caches.values());
+                        }
+                        for (ReplicatedCache<?> c : toCheck) {
+                            c.evictExpired();
+                        }
+                    }
+                }, CACHE_EVICTION_MILLIS, CACHE_EVICTION_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // the client is shutting down
+            }
+        }
+        caches.put(name, cache);
+        if (snapshotsRequested) {
+            // the other caches have already asked a server on this connection
+            GlobalServer source = null;
+            for (GlobalServer server : servers.values()) {
+                if (!server.getName().equals(account)) {
+                    source = server;
+                    break;
+                }
+            }
+            if (source != null) {
+                cache.requestSnapshot(source);
+            } else {
+                snapshotsRequested = false;
+            }
+        }
+        return cache;
     }
 
+    /**
+     * Runs a task in the scheduler thread of this client. The task is dropped if the client is shutting down.
+     */
+    void runInScheduler(Runnable task) {
+        try {
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+        }
+    }
+
+    String getAccount() {
+        return account;
+    }
+
+    /**
+     * Registers a codec for a channel, so typed messages can be sent using {@link #sendMessage(String, Object)}. If a
+     * handler is given, received messages in this channel are decoded and passed to it instead of the raw data
+     * handling.
+     *
+     * @param channel
+     *            the channel to use. may not be null
+     * @param codec
+     *            the codec for the messages in this channel. may not be null
+     * @param handler
+     *            the handler for received messages or null to only send messages in this channel
+     * @throws IllegalArgumentException
+     *             if the channel is already registered
+     */
+    public <T> void registerMessageChannel(String channel, MessageCodec<T> codec, MessageHandler<T> handler) {
+        Objects.requireNonNull(channel, "channel");
+        Objects.requireNonNull(codec, "codec");
+        if (messageChannels.putIfAbsent(channel, new MessageChannel<>(codec, handler)) != null) {
+            throw new IllegalArgumentException("Channel " + channel + " is already registered.");
+        }
+    }
+
+    /**
+     * Unregisters the codec and handler of a channel.
+     *
+     * @param channel
+     *            the channel
+     */
+    public void unregisterMessageChannel(String channel) {
+        messageChannels.remove(channel);
+    }
+
+    /**
+     * Shuts down the client, waiting at most 5 seconds for queued messages to be sent.
+     *
+     * @see #shutdown(long)
+     */
     public void shutdown() {
+        shutdown(DEFAULT_SHUTDOWN_MILLIS);
+    }
+
+    /**
+     * Shuts down the client. New messages are rejected, messages held back by send policies and spooled messages are
+     * sent, and reliable messages are given time to be acknowledged. Then this server is reported offline and all
+     * threads of the client are stopped.
+     *
+     * @param timeoutMillis
+     *            the time to wait for acknowledgements and for the threads to stop in milliseconds
+     * @return how many messages were sent and dropped
+     */
+    public ShutdownResult shutdown(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis may not be negative");
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long flushed = 0;
+        long dropped = 0;
+        OutboundSpool localSpool;
+        synchronized (this) {
+            closing = true;
+            for (ChannelSendState state : sendStates.values()) {
+                int pending = state.getPendingCount();
+                int sent = state.close();
+                flushed += sent;
+                dropped += pending - sent;
+            }
+            sendStates.clear();
+            localSpool = spool;
+        }
+        if (localSpool != null) {
+            long drained = localSpool.getDrainedPackets();
+            while (System.nanoTime() < deadline && drainSpoolBatch()) {
+                // send until the spool is empty
+            }
+            flushed += localSpool.getDrainedPackets() - drained;
+        }
+        // acknowledgements are processed by the connection thread, stop waiting when no server that sends them is left
+        while (dos != null && reliableDelivery.isAwaitingAcknowledgement() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int unacknowledged = reliableDelivery.getUnacknowledged();
+
+        // stop everything first, then wait for all threads with the remaining time
         running = false;
-        dos = null;
         ClientThread localConnection = this.connection;
         if (localConnection != null) {
             localConnection.shutdown();
-            try {
-                localConnection.join(5000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        }
+        dos = null;
+        // stop the reader first, it schedules delayed leaves. a leave received after this reports the leave at once
+        scheduler.shutdownNow();
+        PingThread.unregister(this);
+        ThreadPoolExecutor[] executors = eventExecutors;
+        if (executors != null) {
+            for (ThreadPoolExecutor executor : executors) {
+                executor.shutdown();
             }
         }
-        PingThread pingThread = this.pingThread;
-        if (pingThread != null) {
-            pingThread.shutdown();
-            try {
-                pingThread.join(5000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        boolean completed = unacknowledged == 0;
+        try {
+            if (localConnection != null) {
+                TimeUnit.NANOSECONDS.timedJoin(localConnection, Math.max(1, deadline - System.nanoTime()));
+                completed &= !localConnection.isAlive();
             }
-            pingThread = null;
+            completed &= scheduler.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (executors != null) {
+                for (ThreadPoolExecutor executor : executors) {
+                    completed &= executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            completed = false;
+        }
+        stopRecording();
+        disableSpool();
+        synchronized (this) {
+            dropped += rejectedSends;
         }
+        return new ShutdownResult(flushed, dropped, unacknowledged, completed);
     }
 
     protected abstract void runInMainThread(Runnable r);
@@ -0,0 +1,13 @@
+package de.cubeside.connection;
+
+/**
+ * An event published to the listeners registered with
+ * {@link GlobalClient#addListener(GlobalListener, GlobalListener.Delivery)}. Events are immutable and published after
+ * the change has been applied to the state of the client.
+ * <p>
+ * The {@link GlobalPlayer} and {@link GlobalServer} in an event are the live objects, so they may have changed again
+ * when the event is delivered, especially to {@link GlobalListener.Delivery#ASYNC} listeners. The other components,
+ * like the servers of a player and join times, are copied when the change is made.
+ */
+public sealed interface GlobalEvent permits PlayerJoinedEvent, PlayerDisconnectedEvent, PlayerSwitchedServerEvent, ServerConnectedEvent, ServerDisconnectedEvent {
+}
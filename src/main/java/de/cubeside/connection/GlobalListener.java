@@ -0,0 +1,46 @@
+package de.cubeside.connection;
+
+/**
+ * Receives the events of a {@link GlobalClient}. Register it using
+ * {@link GlobalClient#addListener(GlobalListener, Delivery)}. All methods do nothing by default.
+ * <p>
+ * Events are published after the client lock has been released, so listeners may take their time without blocking
+ * other threads using the client. Events of the same player are always delivered in the order they happened.
+ */
+public interface GlobalListener {
+    /**
+     * Where the events are delivered
+     */
+    public enum Delivery {
+        /**
+         * In the thread that changed the state, or in another thread that is publishing events at the same time. All
+         * events are delivered in the order they happened.
+         */
+        SYNC,
+        /**
+         * In the main thread, using {@link GlobalClient#runInMainThread(Runnable)}. All events are delivered in the
+         * order they happened.
+         */
+        MAIN_THREAD,
+        /**
+         * In a background thread. Events of the same player or server are delivered in order by the same thread, events
+         * of different players and servers may be delivered concurrently and in a different order.
+         */
+        ASYNC
+    }
+
+    default void onPlayerJoined(PlayerJoinedEvent event) {
+    }
+
+    default void onPlayerDisconnected(PlayerDisconnectedEvent event) {
+    }
+
+    default void onPlayerSwitchedServer(PlayerSwitchedServerEvent event) {
+    }
+
+    default void onServerConnected(ServerConnectedEvent event) {
+    }
+
+    default void onServerDisconnected(ServerDisconnectedEvent event) {
+    }
+}
@@ -1,24 +1,24 @@
 package de.cubeside.connection;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
 public class GlobalPlayer {
     private final GlobalClient client;
     private final UUID uuid;
     private final String name;
-    private final HashSet<GlobalPlayerOnServer> servers;
-    private GlobalPlayerOnServer lastJoined;
+    /**
+     * The servers this player is on. It is replaced on every change, so it can be read without holding the client lock.
+     */
+    private volatile Membership membership;
 
     public GlobalPlayer(GlobalClient client, UUID uuid, String name, GlobalServer server, long joinTime) {
         this.client = client;
         this.uuid = uuid;
         this.name = name;
-        this.servers = new HashSet<>();
-        this.lastJoined = new GlobalPlayerOnServer(this, server, joinTime);
-        this.servers.add(lastJoined);
+        this.membership = new Membership(new GlobalServer[] { server }, new long[] { joinTime }, 0, null).withServerBit(server.getIndex(), true);
     }
 
     /**
@@ -27,16 +27,18 @@ public class GlobalPlayer {
      * @return the most recently joined server this player is on
      */
     public GlobalServer getCurrentServer() {
-        return lastJoined == null ? null : lastJoined.getServer();
+        GlobalServer[] servers = membership.servers;
+        return servers.length == 0 ? null : servers[0];
     }
 
     /**
      * Get all servers server this player is on, ordered by the last join. The most recently joined server is the first in the list.
      *
-     * @return a list of all servers this player is on
+     * @return an unmodifiable list of all servers this player is on. It is not changed when the player joins or leaves
+     *         servers later
      */
     public List<GlobalServer> getCurrentServers() {
-        return servers.stream().map((s) -> s.getServer()).collect(Collectors.toList());
+        return membership.currentServers;
     }
 
     /**
@@ -90,55 +92,152 @@ public class GlobalPlayer {
         client.sendData(channel, uuid, null, data, sendToUnrestricted, sendToRestricted);
     }
 
+    /**
+     * Sends a typed message to this player. The message will be sent to all servers this player is on.
+     * The channel must have been registered using {@link GlobalClient#registerMessageChannel(String, MessageCodec, MessageHandler)}.
+     *
+     * @param channel
+     *            the channel to use. may not be null
+     * @param message
+     *            the message to send. may not be null
+     * @param sendToUnrestricted
+     *            send this message also to unrestricted servers where this player is not online.
+     * @param sendToRestricted
+     *            send this message to restricted servers too. If the player is online on some server
+     *            the message is always sent there, even if this parameter is false.
+     */
+    public <T> void sendMessage(String channel, T message, boolean sendToUnrestricted, boolean sendToRestricted) {
+        client.sendMessage(channel, uuid, null, message, sendToUnrestricted, sendToRestricted);
+    }
+
     public boolean isOnAnyServer() {
-        return !servers.isEmpty();
+        return membership.servers.length > 0;
     }
 
     public boolean isOnServer(GlobalServer server) {
-        for (GlobalPlayerOnServer pos : servers) {
-            if (pos.getServer() == server) {
-                return true;
-            }
-        }
-        return false;
+        return membership.contains(server);
     }
 
     protected void addServer(GlobalServer server, long joinTime) {
-        GlobalPlayerOnServer pos = new GlobalPlayerOnServer(this, server, joinTime);
-        servers.add(pos);
-        if (lastJoined == null || lastJoined.getJoinTime() < joinTime) {
-            lastJoined = pos;
+        Membership old = membership;
+        int pos = 0;
+        while (pos < old.joinTimes.length && old.joinTimes[pos] > joinTime) {
+            pos++;
         }
+        GlobalServer[] newServers = new GlobalServer[old.servers.length + 1];
+        long[] newJoinTimes = new long[old.joinTimes.length + 1];
+        System.arraycopy(old.servers, 0, newServers, 0, pos);
+        System.arraycopy(old.joinTimes, 0, newJoinTimes, 0, pos);
+        newServers[pos] = server;
+        newJoinTimes[pos] = joinTime;
+        System.arraycopy(old.servers, pos, newServers, pos + 1, old.servers.length - pos);
+        System.arraycopy(old.joinTimes, pos, newJoinTimes, pos + 1, old.joinTimes.length - pos);
+        membership = new Membership(newServers, newJoinTimes, old.serverMask, old.serverMaskHigh).withServerBit(server.getIndex(), true);
     }
 
     protected void removeServer(GlobalServer server) {
-        for (GlobalPlayerOnServer pos : servers) {
-            if (pos.getServer() == server) {
-                servers.remove(pos);
-                if (lastJoined == pos) {
-                    lastJoined = null;
-                    for (GlobalPlayerOnServer pos2 : servers) {
-                        if (lastJoined == null || lastJoined.getJoinTime() < pos2.getJoinTime()) {
-                            lastJoined = pos2;
-                        }
-                    }
-                }
-                break;
-            }
+        Membership old = membership;
+        int pos = old.indexOf(server);
+        if (pos < 0) {
+            return;
         }
+        GlobalServer[] newServers = new GlobalServer[old.servers.length - 1];
+        long[] newJoinTimes = new long[old.joinTimes.length - 1];
+        System.arraycopy(old.servers, 0, newServers, 0, pos);
+        System.arraycopy(old.joinTimes, 0, newJoinTimes, 0, pos);
+        System.arraycopy(old.servers, pos + 1, newServers, pos, newServers.length - pos);
+        System.arraycopy(old.joinTimes, pos + 1, newJoinTimes, pos, newJoinTimes.length - pos);
+        membership = new Membership(newServers, newJoinTimes, old.serverMask, old.serverMaskHigh).withServerBit(server.getIndex(), false);
     }
 
     public long getJoinTime(GlobalServer s) {
-        for (GlobalPlayerOnServer onServer : servers) {
-            if (onServer.getServer() == s) {
-                return onServer.getJoinTime();
-            }
-        }
-        return -1;
+        Membership membership = this.membership;
+        int pos = membership.indexOf(s);
+        return pos < 0 ? -1 : membership.joinTimes[pos];
     }
 
     @Override
     public String toString() {
         return "GlobalPlayer{uuid=" + uuid + ";name=" + name + "}";
     }
+
+    /**
+     * The servers of a player, their join times and a bitset of their indices. Instances are never modified.
+     */
+    private static final class Membership {
+        /**
+         * The servers, the most recently joined first
+         */
+        private final GlobalServer[] servers;
+        /**
+         * The join times, using the same order as {@link #servers}
+         */
+        private final long[] joinTimes;
+        private final List<GlobalServer> currentServers;
+        /**
+         * Bitset of the indices of the servers. Most networks have less than 64 servers, so {@link #serverMaskHigh} is
+         * usually null.
+         */
+        private final long serverMask;
+        private final long[] serverMaskHigh;
+
+        private Membership(GlobalServer[] servers, long[] joinTimes, long serverMask, long[] serverMaskHigh) {
+            this.servers = servers;
+            this.joinTimes = joinTimes;
+            // the array is never modified, so a view is enough
+            this.currentServers = Collections.unmodifiableList(Arrays.asList(servers));
+            this.serverMask = serverMask;
+            this.serverMaskHigh = serverMaskHigh;
+        }
+
+        private Membership withServerBit(int index, boolean value) {
+            if (index < 0) {
+                return this;
+            } else if (index < 64) {
+                long mask = value ? serverMask | (1L << index) : serverMask & ~(1L << index);
+                return new Membership(servers, joinTimes, mask, serverMaskHigh);
+            }
+            int word = (index >> 6) - 1;
+            long[] high = serverMaskHigh;
+            if (high == null || word >= high.length) {
+                if (!value) {
+                    return this;
+                }
+                high = high == null ? new long[word + 1] : Arrays.copyOf(high, word + 1);
+            } else {
+                high = high.clone();
+            }
+            high[word] = value ? high[word] | (1L << index) : high[word] & ~(1L << index);
+            return new Membership(servers, joinTimes, serverMask, high);
+        }
+
+        private boolean contains(GlobalServer server) {
+            int index = server.getIndex();
+            if (index < 0) {
+                // a server without index, see GlobalServer(GlobalClient, String)
+                for (GlobalServer s : servers) {
+                    if (s == server) {
+                        return true;
+                    }
+                }
+                return false;
+            } else if (index < 64) {
+                return (serverMask & (1L << index)) != 0;
+            }
+            int word = (index >> 6) - 1;
+            return serverMaskHigh != null && word < serverMaskHigh.length && (serverMaskHigh[word] & (1L << index)) != 0;
+        }
+
+        private int indexOf(GlobalServer server) {
+            if (!contains(server)) {
+                return -1;
+            }
+            for (int i = 0; i < servers.length; i++) {
+                if (servers[i] == server) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
 }
@@ -1,5 +1,10 @@
 package de.cubeside.connection;
 
+/**
+ * @deprecated no longer used by the client, use {@link GlobalPlayer#getCurrentServers()} and
+ *             {@link GlobalPlayer#getJoinTime(GlobalServer)} instead
+ */
+@Deprecated
 public class GlobalPlayerOnServer {
     private final GlobalPlayer player;
     private final GlobalServer server;
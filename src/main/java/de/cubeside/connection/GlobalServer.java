@@ -8,12 +8,22 @@ import java.util.UUID;
 public class GlobalServer {
     private final GlobalClient client;
     private final String name;
+    private volatile int index;
     private final HashMap<UUID, GlobalPlayer> players;
     private final Collection<GlobalPlayer> unmodifiablePlayers;
 
+    /**
+     * Creates a server without an index. Checking if a player is on such a server has to look at all servers of the
+     * player. The client itself always assigns an index.
+     */
     public GlobalServer(GlobalClient client, String name) {
+        this(client, name, -1);
+    }
+
+    GlobalServer(GlobalClient client, String name, int index) {
         this.client = client;
         this.name = name;
+        this.index = index;
         this.players = new HashMap<>();
         this.unmodifiablePlayers = Collections.unmodifiableCollection(this.players.values());
     }
@@ -22,6 +32,20 @@ public class GlobalServer {
         return name;
     }
 
+    /**
+     * Get a small non-negative number that identifies this server while it is online. Indices of servers that went
+     * offline are reused for servers that join later.
+     *
+     * @return the index of this server or -1 if this server is offline
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    void releaseIndex() {
+        index = -1;
+    }
+
     public Collection<GlobalPlayer> getPlayers() {
         return unmodifiablePlayers;
     }
@@ -39,6 +63,19 @@ public class GlobalServer {
         client.sendData(channel, null, name, data, false, false);
     }
 
+    /**
+     * Sends a typed message to this server.
+     * The channel must have been registered using {@link GlobalClient#registerMessageChannel(String, MessageCodec, MessageHandler)}.
+     *
+     * @param channel
+     *            the channel to use. may not be null
+     * @param message
+     *            the message to send. may not be null
+     */
+    public <T> void sendMessage(String channel, T message) {
+        client.sendMessage(channel, null, name, message, false, false);
+    }
+
     protected void addPlayer(GlobalPlayer player) {
         players.put(player.getUniqueId(), player);
     }
@@ -0,0 +1,35 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+
+class MessageChannel<T> {
+    private final MessageCodec<T> codec;
+    private final MessageHandler<T> handler;
+
+    MessageChannel(MessageCodec<T> codec, MessageHandler<T> handler) {
+        this.codec = codec;
+        this.handler = handler;
+    }
+
+    MessageCodec<T> getCodec() {
+        return codec;
+    }
+
+    boolean hasHandler() {
+        return handler != null;
+    }
+
+    T decode(byte[] data) throws IOException {
+        MessageInput in = new MessageInput(data);
+        T message = codec.decode(in);
+        if (in.available() > 0) {
+            throw new IOException(in.available() + " trailing bytes after message");
+        }
+        return message;
+    }
+
+    @SuppressWarnings("unchecked")
+    void deliver(GlobalServer source, GlobalPlayer targetPlayer, GlobalServer targetServer, Object message) {
+        handler.handle(source, targetPlayer, targetServer, (T) message);
+    }
+}
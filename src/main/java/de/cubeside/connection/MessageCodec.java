@@ -0,0 +1,34 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+
+/**
+ * Converts typed messages of one channel to and from their binary representation.
+ *
+ * @param <T>
+ *            the message type
+ */
+public interface MessageCodec<T> {
+    /**
+     * Writes a message. The output is the frame that is sent to the server, so no intermediate array is created.
+     *
+     * @param message
+     *            the message to write. never null
+     * @param out
+     *            the output to write to
+     * @throws IOException
+     *             if the message cannot be encoded
+     */
+    public void encode(T message, MessageOutput out) throws IOException;
+
+    /**
+     * Reads a message. The input contains exactly the payload of one data packet.
+     *
+     * @param in
+     *            the input to read from
+     * @return the decoded message
+     * @throws IOException
+     *             if the message cannot be decoded
+     */
+    public T decode(MessageInput in) throws IOException;
+}
@@ -0,0 +1,24 @@
+package de.cubeside.connection;
+
+/**
+ * Receives decoded messages of a channel registered with
+ * {@link GlobalClient#registerMessageChannel(String, MessageCodec, MessageHandler)}.
+ *
+ * @param <T>
+ *            the message type
+ */
+public interface MessageHandler<T> {
+    /**
+     * Called in the main thread when a message is received.
+     *
+     * @param source
+     *            the server that sent the message
+     * @param targetPlayer
+     *            the player this message was sent to or null
+     * @param targetServer
+     *            the server this message was sent to or null
+     * @param message
+     *            the decoded message
+     */
+    public void handle(GlobalServer source, GlobalPlayer targetPlayer, GlobalServer targetServer, T message);
+}
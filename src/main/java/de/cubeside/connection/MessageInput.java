@@ -0,0 +1,226 @@
+package de.cubeside.connection;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Reads the payload of a received data packet. Message codecs read directly from the received array without wrapping
+ * it into streams.
+ */
+public final class MessageInput implements DataInput {
+    private final byte[] buffer;
+    private final int limit;
+    private int pos;
+
+    public MessageInput(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public MessageInput(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.buffer = buffer;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Get the number of bytes that have not been read yet
+     *
+     * @return the number of remaining bytes
+     */
+    public int available() {
+        return limit - pos;
+    }
+
+    private void require(int count) throws EOFException {
+        if (count > limit - pos) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        System.arraycopy(buffer, pos, b, off, len);
+        pos += len;
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, limit - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        require(1);
+        return buffer[pos++];
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        require(2);
+        int v = ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+        pos += 2;
+        return v;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char) readUnsignedShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        int v = ((buffer[pos] & 0xFF) << 24) | ((buffer[pos + 1] & 0xFF) << 16) | ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+        pos += 4;
+        return v;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8);
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buffer[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    @Deprecated
+    public String readLine() throws IOException {
+        if (pos >= limit) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        while (pos < limit) {
+            char c = (char) (buffer[pos++] & 0xFF);
+            if (c == '\n') {
+                break;
+            } else if (c == '\r') {
+                if (pos < limit && buffer[pos] == '\n') {
+                    pos++;
+                }
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads a string in the modified UTF-8 format of {@link java.io.DataInputStream#readUTF()}.
+     */
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /**
+     * Reads an int written by {@link MessageOutput#writeVarInt(int)}.
+     *
+     * @return the value
+     * @throws IOException
+     *             if the input ends or the value is malformed
+     */
+    public int readVarInt() throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    /**
+     * Reads a long written by {@link MessageOutput#writeVarLong(long)}.
+     *
+     * @return the value
+     * @throws IOException
+     *             if the input ends or the value is malformed
+     */
+    public long readVarLong() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarLong too long");
+    }
+
+    /**
+     * Reads a UUID written by {@link MessageOutput#writeUUID(UUID)}.
+     *
+     * @return the uuid
+     * @throws IOException
+     *             if the input ends
+     */
+    public UUID readUUID() throws IOException {
+        long mostSigBits = readLong();
+        long leastSigBits = readLong();
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Reads a string written by {@link MessageOutput#writeString(String)}.
+     *
+     * @return the string
+     * @throws IOException
+     *             if the input ends or the length is invalid
+     */
+    public String readString() throws IOException {
+        int len = readVarInt();
+        if (len < 0) {
+            throw new IOException("Invalid string length " + len);
+        }
+        require(len);
+        String s = new String(buffer, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+}
@@ -0,0 +1,266 @@
+package de.cubeside.connection;
+
+import java.io.DataOutput;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A growable buffer that outbound packets are assembled in. Message codecs write their payload directly into it, so
+ * a message is copied only once: from this buffer into the connection.
+ */
+public final class MessageOutput implements DataOutput {
+    private byte[] buffer;
+    private int size;
+
+    public MessageOutput() {
+        this(256);
+    }
+
+    public MessageOutput(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = size + additional;
+        if (required < 0) {
+            throw new OutOfMemoryError("Message too large");
+        }
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+    /**
+     * Get the number of bytes written
+     *
+     * @return the number of bytes written
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Discards all written bytes, but keeps the allocated buffer.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Get a copy of the written bytes
+     *
+     * @return a new array containing the written bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Skips four bytes that can be filled later using {@link #setInt(int, int)}.
+     *
+     * @return the position of the skipped bytes
+     */
+    int reserveInt() {
+        ensureCapacity(4);
+        int pos = size;
+        size += 4;
+        return pos;
+    }
+
+    void setInt(int pos, int v) {
+        buffer[pos] = (byte) (v >>> 24);
+        buffer[pos + 1] = (byte) (v >>> 16);
+        buffer[pos + 2] = (byte) (v >>> 8);
+        buffer[pos + 3] = (byte) v;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buffer, size, len);
+        size += len;
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        buffer[size++] = (byte) (v >>> 8);
+        buffer[size++] = (byte) v;
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        setInt(size, v);
+        size += 4;
+    }
+
+    @Override
+    public void writeLong(long v) {
+        ensureCapacity(8);
+        for (int i = 56; i >= 0; i -= 8) {
+            buffer[size++] = (byte) (v >>> i);
+        }
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        int len = s.length();
+        ensureCapacity(len * 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            buffer[size++] = (byte) (c >>> 8);
+            buffer[size++] = (byte) c;
+        }
+    }
+
+    /**
+     * Writes a string in the modified UTF-8 format of {@link java.io.DataOutputStream#writeUTF(String)}.
+     */
+    @Override
+    public void writeUTF(String s) throws UTFDataFormatException {
+        int len = s.length();
+        int utflen = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            utflen += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+        }
+        if (utflen > 65535) {
+            throw new UTFDataFormatException("encoded string too long: " + utflen + " bytes");
+        }
+        ensureCapacity(utflen + 2);
+        buffer[size++] = (byte) (utflen >>> 8);
+        buffer[size++] = (byte) utflen;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer[size++] = (byte) c;
+            } else if (c > 0x07FF) {
+                buffer[size++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buffer[size++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Writes an int using 1 to 5 bytes. Small non-negative values use less space.
+     *
+     * @param v
+     *            the value
+     */
+    public void writeVarInt(int v) {
+        ensureCapacity(5);
+        while ((v & ~0x7F) != 0) {
+            buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[size++] = (byte) v;
+    }
+
+    /**
+     * Writes a long using 1 to 10 bytes. Small non-negative values use less space.
+     *
+     * @param v
+     *            the value
+     */
+    public void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buffer[size++] = (byte) v;
+    }
+
+    /**
+     * Writes a UUID as two longs.
+     *
+     * @param uuid
+     *            the uuid. may not be null
+     */
+    public void writeUUID(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Writes a string as UTF-8 with a varint length prefix. Unlike {@link #writeUTF(String)} the length is not limited
+     * to 65535 bytes. ASCII strings are written without creating a temporary array.
+     *
+     * @param s
+     *            the string. may not be null
+     */
+    public void writeString(String s) {
+        int len = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            writeVarInt(len);
+            writeBytes(s);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes);
+        }
+    }
+}
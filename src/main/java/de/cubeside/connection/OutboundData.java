@@ -0,0 +1,65 @@
+package de.cubeside.connection;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A data packet that has not been written to the connection yet.
+ */
+class OutboundData {
+    final String channel;
+    final UUID targetUuid;
+    final String targetServer;
+    final byte[] data;
+    final boolean sendToAll;
+    final boolean sendToRestricted;
+
+    OutboundData(String channel, UUID targetUuid, String targetServer, byte[] data, boolean sendToAll, boolean sendToRestricted) {
+        this.channel = channel;
+        this.targetUuid = targetUuid;
+        this.targetServer = targetServer;
+        this.data = data;
+        this.sendToAll = sendToAll;
+        this.sendToRestricted = sendToRestricted;
+    }
+
+    /**
+     * Get a key that is equal for packets in the same channel with the same receivers.
+     *
+     * @return the key
+     */
+    Target getTarget() {
+        return new Target(targetUuid, targetServer, sendToAll, sendToRestricted);
+    }
+
+    static class Target {
+        private final UUID targetUuid;
+        private final String targetServer;
+        private final boolean sendToAll;
+        private final boolean sendToRestricted;
+
+        Target(UUID targetUuid, String targetServer, boolean sendToAll, boolean sendToRestricted) {
+            this.targetUuid = targetUuid;
+            this.targetServer = targetServer;
+            this.sendToAll = sendToAll;
+            this.sendToRestricted = sendToRestricted;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(targetUuid, targetServer, sendToAll, sendToRestricted);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Target)) {
+                return false;
+            }
+            Target other = (Target) obj;
+            return Objects.equals(targetUuid, other.targetUuid) && Objects.equals(targetServer, other.targetServer) && sendToAll == other.sendToAll && sendToRestricted == other.sendToRestricted;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores data packets that could not be sent because the client was not connected, so they can be sent after the
+ * connection has been established again. Use {@link GlobalClient#enableSpool(Path, long, long)} to create a spool.
+ * <p>
+ * Packets are appended to memory mapped segment files. Each segment starts with the offset of the first packet that
+ * was not sent yet, followed by records consisting of the length, the time it was stored and the packet. Segments are
+ * deleted when all their packets have been sent or have expired. Segments left over from a previous run are sent
+ * after the next connect, also if they were created with a different segment size.
+ * <p>
+ * Packets are sent in batches of at most {@link #BATCH_SIZE} bytes. A batch is copied out of the spool with
+ * {@link #readBatch()} and only removed by {@link #commit(Batch)} after it has been written, so a batch that could not
+ * be written is sent again after the next connect.
+ */
+public final class OutboundSpool {
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 12;
+    static final int BATCH_SIZE = 1 << 16;
+
+    private final Logger logger;
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final ArrayDeque<Segment> segments;
+    private long nextSegmentId;
+    private boolean closed;
+
+    private long spooledPackets;
+    private long spooledBytes;
+    private long drainedPackets;
+    private long drainedBytes;
+    private long expiredPackets;
+    private long droppedPackets;
+
+    OutboundSpool(Logger logger, Path directory, int segmentSize, long maxBytes, long ttlMillis) throws IOException {
+        if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small");
+        }
+        this.logger = logger;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.segments = new ArrayDeque<>();
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long id;
+            try {
+                id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            long fileSize = Files.size(file);
+            if (fileSize <= HEADER_SIZE + RECORD_HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+                logger.warning("Deleting invalid spool segment " + file);
+                Files.deleteIfExists(file);
+                continue;
+            }
+            // segments of a different size are sent and deleted, but not appended to
+            Segment segment = new Segment(file, (int) fileSize, false);
+            int pos = segment.readPos;
+            while (pos + RECORD_HEADER_SIZE <= segment.size) {
+                int length = segment.buffer.getInt(pos);
+                if (length <= 0 || pos + RECORD_HEADER_SIZE + length > segment.size) {
+                    break;
+                }
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            segment.writePos = pos;
+            if (segment.readPos == segment.writePos) {
+                segment.delete();
+            } else {
+                segments.add(segment);
+            }
+        }
+    }
+
+    /**
+     * Appends a packet.
+     *
+     * @return false if the spool is full or the packet is too large
+     */
+    synchronized boolean append(byte[] packet, int offset, int length) {
+        if (closed) {
+            return false;
+        }
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > segmentSize - HEADER_SIZE) {
+            droppedPackets++;
+            return false;
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.size != segmentSize || segment.writePos + recordSize > segmentSize) {
+            if (getDiskBytes() + segmentSize > maxBytes) {
+                droppedPackets++;
+                return false;
+            }
+            try {
+                segment = new Segment(directory.resolve(String.format("%s%016x%s", PREFIX, nextSegmentId++, SUFFIX)), segmentSize, true);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Could not create spool segment", e);
+                droppedPackets++;
+                return false;
+            }
+            segments.add(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = segment.writePos;
+        if (pos + recordSize + 4 <= segmentSize) {
+            // terminate the records, the segment may contain packets that have already been sent
+            buffer.putInt(pos + recordSize, 0);
+        }
+        buffer.putLong(pos + 4, System.currentTimeMillis());
+        buffer.put(pos + RECORD_HEADER_SIZE, packet, offset, length);
+        // the length is written last, so an interrupted write is not visible after a restart
+        buffer.putInt(pos, length);
+        segment.writePos = pos + recordSize;
+        spooledPackets++;
+        spooledBytes += length;
+        return true;
+    }
+
+    /**
+     * Copies the next stored packets that have not expired, in the order they were stored. The packets are kept until
+     * the batch is committed.
+     *
+     * @return the batch or null if the spool is empty
+     */
+    synchronized Batch readBatch() {
+        long expireBefore = ttlMillis > 0 ? System.currentTimeMillis() - ttlMillis : Long.MIN_VALUE;
+        while (!closed && !segments.isEmpty()) {
+            Segment segment = segments.peekFirst();
+            if (segment.readPos >= segment.writePos) {
+                if (segment == segments.peekLast()) {
+                    return null;
+                }
+                segments.pollFirst();
+                segment.delete();
+                continue;
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int pos = segment.readPos;
+            int size = 0;
+            int expired = 0;
+            ArrayList<Integer> records = new ArrayList<>();
+            while (pos < segment.writePos) {
+                int length = buffer.getInt(pos);
+                long time = buffer.getLong(pos + 4);
+                if (time < expireBefore) {
+                    expired++;
+                } else if (size + length > BATCH_SIZE && size > 0) {
+                    break;
+                } else {
+                    records.add(pos);
+                    size += length;
+                }
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            byte[] data = new byte[size];
+            int offset = 0;
+            for (int record : records) {
+                int length = buffer.getInt(record);
+                buffer.get(record + RECORD_HEADER_SIZE, data, offset, length);
+                offset += length;
+            }
+            return new Batch(segment, pos, data, records.size(), expired);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the packets of a batch after they have been written.
+     */
+    synchronized void commit(Batch batch) {
+        Segment segment = batch.segment;
+        if (closed || segment != segments.peekFirst() || segment.readPos > batch.nextPos) {
+            return;
+        }
+        segment.setReadPos(batch.nextPos);
+        drainedPackets += batch.packets;
+        drainedBytes += batch.data.length;
+        expiredPackets += batch.expired;
+        if (segment.readPos >= segment.writePos) {
+            if (segment == segments.peekLast() && segment.size == segmentSize) {
+                // keep appending to the last segment, but start at the beginning again
+                segment.writePos = HEADER_SIZE;
+                segment.setReadPos(HEADER_SIZE);
+                segment.buffer.putInt(HEADER_SIZE, 0);
+            } else {
+                segments.pollFirst();
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Checks if packets are waiting to be sent
+     *
+     * @return true if the spool contains packets
+     */
+    synchronized boolean hasPending() {
+        for (Segment segment : segments) {
+            if (segment.readPos < segment.writePos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of bytes of packets waiting to be sent
+     *
+     * @return the number of bytes in the spool
+     */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.writePos - segment.readPos;
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes the segment files use on the disk
+     *
+     * @return the number of bytes of all segment files
+     */
+    public synchronized long getDiskBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    public synchronized long getSpooledPackets() {
+        return spooledPackets;
+    }
+
+    public synchronized long getSpooledBytes() {
+        return spooledBytes;
+    }
+
+    public synchronized long getDrainedPackets() {
+        return drainedPackets;
+    }
+
+    public synchronized long getDrainedBytes() {
+        return drainedBytes;
+    }
+
+    /**
+     * Get the number of packets that were not sent because they were older than the time to live
+     *
+     * @return the number of expired packets
+     */
+    public synchronized long getExpiredPackets() {
+        return expiredPackets;
+    }
+
+    /**
+     * Get the number of packets that were not stored because the spool was full or they were too large
+     *
+     * @return the number of dropped packets
+     */
+    public synchronized long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Packets copied out of the spool by {@link OutboundSpool#readBatch()}
+     */
+    static final class Batch {
+        private final Segment segment;
+        private final int nextPos;
+        private final byte[] data;
+        private final int packets;
+        private final int expired;
+
+        private Batch(Segment segment, int nextPos, byte[] data, int packets, int expired) {
+            this.segment = segment;
+            this.nextPos = nextPos;
+            this.data = data;
+            this.packets = packets;
+            this.expired = expired;
+        }
+
+        /**
+         * Get the packets of this batch, ready to be written to the connection
+         *
+         * @return the packets
+         */
+        byte[] getData() {
+            return data;
+        }
+
+        int getPackets() {
+            return packets;
+        }
+    }
+
+    private class Segment {
+        private final Path file;
+        private final int size;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int readPos;
+        private int writePos;
+
+        public Segment(Path file, int size, boolean create) throws IOException {
+            this.file = file;
+            this.size = size;
+            if (create) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            buffer = channel.map(MapMode.READ_WRITE, 0, size);
+            if (create) {
+                setReadPos(HEADER_SIZE);
+            } else {
+                readPos = buffer.getInt(0);
+                if (readPos < HEADER_SIZE || readPos > size) {
+                    readPos = HEADER_SIZE;
+                }
+            }
+            writePos = readPos;
+        }
+
+        void setReadPos(int readPos) {
+            this.readPos = readPos;
+            buffer.putInt(0, readPos);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close spool segment " + file, e);
+            }
+        }
+
+        void delete() {
+            close();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not delete spool segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package de.cubeside.connection;
+
+import java.util.List;
+
+/**
+ * A player left a server or the server went offline.
+ *
+ * @param server
+ *            the server the player left
+ * @param player
+ *            the player
+ * @param leftTheNetwork
+ *            true if the player is not on any other server
+ * @param playerServers
+ *            the servers the player was still on after leaving, ordered like {@link GlobalPlayer#getCurrentServers()}
+ */
+public record PlayerDisconnectedEvent(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork, List<GlobalServer> playerServers) implements GlobalEvent {
+}
@@ -0,0 +1,20 @@
+package de.cubeside.connection;
+
+import java.util.List;
+
+/**
+ * A player joined a server.
+ *
+ * @param server
+ *            the server the player joined
+ * @param player
+ *            the player
+ * @param joinedTheNetwork
+ *            true if the player was not on any other server
+ * @param joinTime
+ *            the time the player joined the server
+ * @param playerServers
+ *            the servers the player was on after joining, ordered like {@link GlobalPlayer#getCurrentServers()}
+ */
+public record PlayerJoinedEvent(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork, long joinTime, List<GlobalServer> playerServers) implements GlobalEvent {
+}
@@ -0,0 +1,22 @@
+package de.cubeside.connection;
+
+import java.util.List;
+
+/**
+ * A player left a server and joined another server within the window set by
+ * {@link GlobalClient#setPlayerSwitchWindow(long)}. No {@link PlayerDisconnectedEvent} and {@link PlayerJoinedEvent}
+ * are published for a switch.
+ *
+ * @param player
+ *            the player
+ * @param from
+ *            the server the player left
+ * @param to
+ *            the server the player joined
+ * @param joinTime
+ *            the time the player joined the new server
+ * @param playerServers
+ *            the servers the player was on after the switch, ordered like {@link GlobalPlayer#getCurrentServers()}
+ */
+public record PlayerSwitchedServerEvent(GlobalPlayer player, GlobalServer from, GlobalServer to, long joinTime, List<GlobalServer> playerServers) implements GlobalEvent {
+}
@@ -0,0 +1,47 @@
+package de.cubeside.connection;
+
+/**
+ * Decides how long a {@link GlobalClient} waits before connecting again. Use
+ * {@link GlobalClient#setReconnectPolicy(ReconnectPolicy)} to change the policy, the default is
+ * {@link BackoffReconnectPolicy#defaults()}.
+ */
+public interface ReconnectPolicy {
+    /**
+     * Why the client has to connect again
+     */
+    public enum Reason {
+        /**
+         * The server could not be reached
+         */
+        CONNECT_FAILED,
+        /**
+         * An established connection was closed or failed
+         */
+        CONNECTION_LOST,
+        /**
+         * The server rejected the account or password
+         */
+        LOGIN_FAILED
+    }
+
+    /**
+     * Get the time to wait before the next connection attempt. This is called from the connection thread.
+     *
+     * @param reason
+     *            why the client has to connect again
+     * @param attempt
+     *            the number of failures since the last stable connection, starting at 1
+     * @param previousDelayMillis
+     *            the delay returned for the previous failure or 0 if this is the first failure
+     * @return the delay in milliseconds
+     */
+    long getDelay(Reason reason, int attempt, long previousDelayMillis);
+
+    /**
+     * Get the time a connection has to stay open to be considered stable. After a stable connection the attempt
+     * counter starts at 1 again.
+     *
+     * @return the time in milliseconds
+     */
+    long getStableConnectionMillis();
+}
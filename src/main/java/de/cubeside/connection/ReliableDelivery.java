@@ -0,0 +1,512 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequenced and acknowledged delivery for the channels enabled by {@link GlobalClient#setReliable(String, boolean)}.
+ * <p>
+ * Every data packet in a reliable channel is prefixed with the epoch of the sending client (a random number chosen
+ * when the client is created) and a sequence number. Receivers drop packets with a sequence number they have already
+ * seen and send back cumulative acknowledgements, at most one per sender every {@link #ACK_DELAY_MILLIS} milliseconds.
+ * Since the connection preserves the order of the packets of one sender, an acknowledgement of a sequence number
+ * confirms all earlier packets to that receiver. All reliable channels of a client share one sequence counter, so the
+ * order is kept per sending client and not per channel.
+ * <p>
+ * When a packet is sent, its expected receivers are determined: the target server, the servers of the target player or
+ * all other servers, each limited to the servers that have acknowledged packets of this client before if there are
+ * any. While the client is not connected or before the servers have been announced after a connect, the other servers
+ * are not known. The receivers of such packets are determined after they were sent on a connection, when the first
+ * acknowledgement for them arrives or {@link #RETRANSMIT_MILLIS} milliseconds later.
+ * <p>
+ * A packet is kept until all of its expected receivers have confirmed it or went offline. Unconfirmed packets are sent
+ * again after a reconnect and every {@link #RETRANSMIT_MILLIS} milliseconds while connected, at most
+ * {@link #MAX_ATTEMPTS} times. Retransmitting pauses while spooled packets are sent, so retransmitted packets do not
+ * overtake spooled packets with a lower sequence number. At most {@link #MAX_UNACKNOWLEDGED_BYTES} bytes are kept, the
+ * oldest packets are given up first.
+ */
+public final class ReliableDelivery {
+    static final String ACK_CHANNEL = "globalclient.ack";
+    static final long ACK_DELAY_MILLIS = 50;
+    static final long RETRANSMIT_MILLIS = 5000;
+    static final int MAX_ATTEMPTS = 5;
+    static final long MAX_UNACKNOWLEDGED_BYTES = 16 << 20;
+
+    private final GlobalClient client;
+    private final ScheduledExecutorService scheduler;
+    private final long epoch;
+    private long nextSeq;
+
+    private final HashSet<String> channels;
+    private final ArrayDeque<Unacknowledged> unacknowledged;
+    private long unacknowledgedBytes;
+    private final HashMap<String, Long> acknowledgedBy;
+    private final HashMap<String, ReceiveState> receiveStates;
+    private final HashSet<String> pendingAcks;
+    private boolean ackFlushScheduled;
+    private boolean retransmitScheduled;
+
+    private long sent;
+    private long retransmitted;
+    private long acknowledged;
+    private long failed;
+    private long duplicates;
+
+    ReliableDelivery(GlobalClient client, ScheduledExecutorService scheduler) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.epoch = new SecureRandom().nextLong();
+        this.nextSeq = 1;
+        this.channels = new HashSet<>();
+        this.unacknowledged = new ArrayDeque<>();
+        this.acknowledgedBy = new HashMap<>();
+        this.receiveStates = new HashMap<>();
+        this.pendingAcks = new HashSet<>();
+    }
+
+    synchronized void setReliable(String channel, boolean reliable) {
+        if (reliable) {
+            channels.add(channel);
+            if (!retransmitScheduled) {
+                retransmitScheduled = true;
+                try {
+                    scheduler.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            retransmit(false);
+                        }
+                    }, RETRANSMIT_MILLIS, RETRANSMIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the client is shutting down
+                }
+            }
+        } else {
+            channels.remove(channel);
+        }
+    }
+
+    synchronized boolean isReliable(String channel) {
+        return channels.contains(channel);
+    }
+
+    /**
+     * Assigns the next sequence number to an outgoing packet and keeps it until it is acknowledged.
+     *
+     * @return the data to send, prefixed with epoch and sequence number
+     */
+    synchronized byte[] wrap(String channel, UUID targetUuid, String targetServer, byte[] data, boolean sendToAll, boolean sendToRestricted) {
+        long seq = nextSeq++;
+        MessageOutput out = new MessageOutput(data.length + 18);
+        out.writeLong(epoch);
+        out.writeVarLong(seq);
+        out.write(data);
+        byte[] wrapped = out.toByteArray();
+        sent++;
+        HashSet<String> receivers = null;
+        if (targetServer != null || client.isConnected()) {
+            receivers = expectedReceivers(targetUuid, targetServer);
+            if (receivers.isEmpty()) {
+                if (targetUuid != null && client.getPlayer(targetUuid) != null) {
+                    // the player is only on this server
+                    return wrapped;
+                }
+                // no other server is known yet, for example right after a reconnect
+                receivers = null;
+            }
+        }
+        while (!unacknowledged.isEmpty() && unacknowledgedBytes + wrapped.length > MAX_UNACKNOWLEDGED_BYTES) {
+            unacknowledgedBytes -= unacknowledged.poll().data.data.length;
+            failed++;
+        }
+        unacknowledged.add(new Unacknowledged(seq, new OutboundData(channel, targetUuid, targetServer, wrapped, sendToAll, sendToRestricted), receivers));
+        unacknowledgedBytes += wrapped.length;
+        return wrapped;
+    }
+
+    private HashSet<String> expectedReceivers(UUID targetUuid, String targetServer) {
+        HashSet<String> receivers = new HashSet<>();
+        if (targetServer != null) {
+            receivers.add(targetServer);
+            return receivers;
+        }
+        GlobalServer thisServer = client.getThisServer();
+        GlobalPlayer player = targetUuid != null ? client.getPlayer(targetUuid) : null;
+        Collection<GlobalServer> servers = player != null ? player.getCurrentServers() : client.getServers();
+        for (GlobalServer server : servers) {
+            if (server != thisServer) {
+                receivers.add(server.getName());
+            }
+        }
+        // servers that have never acknowledged anything probably do not use reliable channels
+        HashSet<String> acknowledging = new HashSet<>(receivers);
+        acknowledging.retainAll(acknowledgedBy.keySet());
+        return acknowledging.isEmpty() ? receivers : acknowledging;
+    }
+
+    /**
+     * Removes epoch and sequence number from a received packet.
+     *
+     * @return the data or null if the packet was already received
+     */
+    byte[] unwrap(String source, byte[] data) throws IOException {
+        MessageInput in = new MessageInput(data);
+        long senderEpoch = in.readLong();
+        long seq = in.readVarLong();
+        boolean duplicate;
+        synchronized (this) {
+            ReceiveState state = receiveStates.get(source);
+            if (state == null || state.epoch != senderEpoch) {
+                // new sender or the sender was restarted
+                state = new ReceiveState(senderEpoch);
+                receiveStates.put(source, state);
+            }
+            duplicate = seq <= state.highestSeq;
+            if (duplicate) {
+                duplicates++;
+            } else {
+                state.highestSeq = seq;
+            }
+            pendingAcks.add(source);
+            scheduleAckFlush();
+        }
+        if (duplicate) {
+            return null;
+        }
+        byte[] result = new byte[in.available()];
+        in.readFully(result);
+        return result;
+    }
+
+    /**
+     * Removes epoch and sequence number from a packet without checking for duplicates or sending an acknowledgement.
+     *
+     * @return the data
+     */
+    static byte[] strip(byte[] data) throws IOException {
+        MessageInput in = new MessageInput(data);
+        in.readLong();
+        in.readVarLong();
+        byte[] result = new byte[in.available()];
+        in.readFully(result);
+        return result;
+    }
+
+    private void scheduleAckFlush() {
+        if (ackFlushScheduled) {
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushAcks();
+                }
+            }, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            ackFlushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // the client is shutting down
+        }
+    }
+
+    private void flushAcks() {
+        ArrayList<Map.Entry<String, byte[]>> acks = new ArrayList<>();
+        synchronized (this) {
+            ackFlushScheduled = false;
+            for (String source : pendingAcks) {
+                ReceiveState state = receiveStates.get(source);
+                if (state != null) {
+                    MessageOutput out = new MessageOutput(18);
+                    out.writeLong(state.epoch);
+                    out.writeVarLong(state.highestSeq);
+                    acks.add(Map.entry(source, out.toByteArray()));
+                }
+            }
+            pendingAcks.clear();
+        }
+        // send without holding this lock, the client lock has to be acquired first. acknowledgements bypass the send
+        // policies and are still sent while the client is shutting down
+        for (Map.Entry<String, byte[]> ack : acks) {
+            client.writeDataFrame(new OutboundData(ACK_CHANNEL, null, ack.getKey(), ack.getValue(), false, true));
+        }
+    }
+
+    /**
+     * Processes an acknowledgement received from another server.
+     */
+    void handleAck(String source, byte[] data) throws IOException {
+        MessageInput in = new MessageInput(data);
+        long ackEpoch = in.readLong();
+        long seq = in.readVarLong();
+        boolean resolve = false;
+        synchronized (this) {
+            if (ackEpoch != epoch) {
+                return;
+            }
+            Long old = acknowledgedBy.get(source);
+            if (old == null || old < seq) {
+                acknowledgedBy.put(source, seq);
+                resolve = release(source, seq);
+            }
+        }
+        if (resolve) {
+            // the servers announced by the server before this acknowledgement are known in the main thread
+            client.runInMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    resolveReceivers();
+                }
+            });
+        }
+    }
+
+    /**
+     * Determines the receivers of the packets that have been confirmed by a server before their receivers were known.
+     */
+    private void resolveReceivers() {
+        synchronized (client) {
+            if (!client.isConnected()) {
+                return;
+            }
+            synchronized (this) {
+                Iterator<Unacknowledged> it = unacknowledged.iterator();
+                while (it.hasNext()) {
+                    Unacknowledged e = it.next();
+                    if (e.receivers == null && !e.confirmedBy.isEmpty() && !resolve(e)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines the receivers of a packet from the servers that are online now.
+     *
+     * @return false if the packet has no receivers left and was released
+     */
+    private boolean resolve(Unacknowledged e) {
+        e.receivers = expectedReceivers(e.data.targetUuid, null);
+        e.receivers.removeAll(e.confirmedBy);
+        e.confirmed = !e.confirmedBy.isEmpty();
+        if (!e.receivers.isEmpty()) {
+            return true;
+        }
+        unacknowledgedBytes -= e.data.data.length;
+        if (e.confirmed) {
+            acknowledged++;
+        }
+        return false;
+    }
+
+    synchronized void onServerOffline(String server) {
+        receiveStates.remove(server);
+        pendingAcks.remove(server);
+        acknowledgedBy.remove(server);
+        release(server, Long.MAX_VALUE);
+    }
+
+    /**
+     * Removes a server from the expected receivers of all packets up to a sequence number and releases the packets
+     * that have no expected receivers left.
+     *
+     * @return true if the server has confirmed packets with receivers that are not known yet
+     */
+    private boolean release(String server, long upToSeq) {
+        boolean offline = upToSeq == Long.MAX_VALUE;
+        boolean unresolved = false;
+        Iterator<Unacknowledged> it = unacknowledged.iterator();
+        while (it.hasNext()) {
+            Unacknowledged e = it.next();
+            if (e.seq > upToSeq) {
+                break;
+            }
+            if (e.receivers == null) {
+                // the receivers are determined later
+                if (!offline) {
+                    e.confirmedBy.add(server);
+                    unresolved = true;
+                }
+                continue;
+            }
+            if (e.receivers.remove(server) && !offline) {
+                e.confirmed = true;
+            }
+            if (e.receivers.isEmpty()) {
+                it.remove();
+                unacknowledgedBytes -= e.data.data.length;
+                if (e.confirmed) {
+                    acknowledged++;
+                } else {
+                    failed++;
+                }
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * Sends unacknowledged packets again. Nothing is sent while the client is not connected.
+     *
+     * @param all
+     *            true to send all packets before the spool is sent after a connect, false to only send packets that
+     *            were sent more than {@link #RETRANSMIT_MILLIS} milliseconds ago unless the spool is being sent
+     */
+    void retransmit(boolean all) {
+        synchronized (client) {
+            if (!client.isConnected() || (!all && client.isDrainingSpool())) {
+                return;
+            }
+            ArrayList<Unacknowledged> resend = new ArrayList<>();
+            synchronized (this) {
+                long now = System.nanoTime();
+                Iterator<Unacknowledged> it = unacknowledged.iterator();
+                while (it.hasNext()) {
+                    Unacknowledged e = it.next();
+                    if (!all && now - e.lastSent < TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_MILLIS)) {
+                        continue;
+                    }
+                    if (!all && e.receivers == null && !resolve(e)) {
+                        // sent on this connection long enough ago that the other servers are known now
+                        it.remove();
+                        continue;
+                    }
+                    if (e.attempts >= MAX_ATTEMPTS) {
+                        it.remove();
+                        unacknowledgedBytes -= e.data.data.length;
+                        failed++;
+                        continue;
+                    }
+                    resend.add(e);
+                }
+            }
+            for (Unacknowledged e : resend) {
+                // only count attempts that reached the server
+                if (client.writeDataFrame(e.data)) {
+                    synchronized (this) {
+                        e.attempts++;
+                        e.lastSent = System.nanoTime();
+                        retransmitted++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of packets that have not been acknowledged yet
+     *
+     * @return the number of unacknowledged packets
+     */
+    public synchronized int getUnacknowledged() {
+        return unacknowledged.size();
+    }
+
+    /**
+     * Checks if an unacknowledged packet is expected to be confirmed by a server that has sent acknowledgements before
+     *
+     * @return true if waiting for acknowledgements can make progress
+     */
+    synchronized boolean isAwaitingAcknowledgement() {
+        for (Unacknowledged e : unacknowledged) {
+            if (e.receivers == null) {
+                for (String server : acknowledgedBy.keySet()) {
+                    if (!e.confirmedBy.contains(server)) {
+                        return true;
+                    }
+                }
+                continue;
+            }
+            for (String receiver : e.receivers) {
+                if (acknowledgedBy.containsKey(receiver)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the size of the packets that have not been acknowledged yet
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getUnacknowledgedBytes() {
+        return unacknowledgedBytes;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getRetransmitted() {
+        return retransmitted;
+    }
+
+    public synchronized long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Get the number of packets that were given up, because they were not acknowledged after {@link #MAX_ATTEMPTS}
+     * attempts, because all of their receivers went offline before confirming them or because more than
+     * {@link #MAX_UNACKNOWLEDGED_BYTES} bytes were waiting for acknowledgement.
+     *
+     * @return the number of failed packets
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the number of received packets that were dropped because they had already been received
+     *
+     * @return the number of duplicates
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    private static class Unacknowledged {
+        private final long seq;
+        private final OutboundData data;
+        /**
+         * The servers that have not confirmed this packet yet or null if they are not known yet
+         */
+        private HashSet<String> receivers;
+        /**
+         * The servers that have confirmed this packet before its receivers were known
+         */
+        private final HashSet<String> confirmedBy;
+        private boolean confirmed;
+        private int attempts;
+        private long lastSent;
+
+        public Unacknowledged(long seq, OutboundData data, HashSet<String> receivers) {
+            this.seq = seq;
+            this.data = data;
+            this.receivers = receivers;
+            this.confirmedBy = new HashSet<>();
+            this.lastSent = System.nanoTime();
+        }
+    }
+
+    private static class ReceiveState {
+        private final long epoch;
+        private long highestSeq;
+
+        public ReceiveState(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+}
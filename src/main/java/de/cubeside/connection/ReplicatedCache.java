@@ -0,0 +1,424 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A key/value cache that is replicated to all servers using the same cache name. Use
+ * {@link GlobalClient#getCache(String, MessageCodec)} to get a cache.
+ * <p>
+ * Reads are always answered from the local copy. Writes are applied locally and sent to the other servers as a single
+ * change. Concurrent writes of the same key are resolved by their version: the write with the highest version wins,
+ * ties are broken by the server name.
+ * <p>
+ * After connecting, a client asks the first other server that is announced for a snapshot of its entries. A cache that
+ * is created later asks one of the online servers. Only that server answers, so a restart of the central server costs
+ * one snapshot per server and not one per pair of servers. Snapshots are encoded in the scheduler thread of the client
+ * and split into messages of at most about {@link #MAX_SNAPSHOT_BYTES} bytes. Changes made while the client is not
+ * connected are not sent to the other servers, unless the channel of the cache is spooled (see
+ * {@link GlobalClient#setSpooled(String, boolean)}).
+ * <p>
+ * Entries are evicted locally when the cache has more values than its maximum size (least recently used first) or when
+ * they are older than the time to live. Evictions are not replicated.
+ *
+ * @param <V>
+ *            the value type
+ */
+public final class ReplicatedCache<V> {
+    static final String CHANNEL_PREFIX = "globalclient.cache.";
+
+    private static final int TYPE_PUT = 0;
+    private static final int TYPE_REMOVE = 1;
+    private static final int TYPE_SNAPSHOT = 2;
+    private static final int TYPE_SNAPSHOT_REQUEST = 3;
+
+    /**
+     * The size of one snapshot message, far below the size limit for data packets of the server.
+     */
+    static final int MAX_SNAPSHOT_BYTES = 1 << 20;
+
+    /**
+     * Removed entries are remembered at least this long, so an older write arriving later does not restore them.
+     */
+    private static final long TOMBSTONE_MILLIS = 60_000;
+
+    private final GlobalClient client;
+    private final Logger logger;
+    private final String name;
+    private final String channel;
+    private final MessageCodec<V> valueCodec;
+    private final LinkedHashMap<String, Entry<V>> entries;
+    private int maxSize;
+    private int values;
+    private long ttlMillis;
+    private long lastVersion;
+
+    ReplicatedCache(GlobalClient client, Logger logger, String name, MessageCodec<V> valueCodec) {
+        this.client = client;
+        this.logger = logger;
+        this.name = name;
+        this.channel = CHANNEL_PREFIX + name;
+        this.valueCodec = valueCodec;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.maxSize = Integer.MAX_VALUE;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    MessageCodec<V> getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the maximum number of values kept locally. Removed keys are remembered for some time, but do not count. The
+     * default is unlimited.
+     *
+     * @param maxSize
+     *            the maximum number of values
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        evictOverflow();
+    }
+
+    /**
+     * Sets the time after which entries are evicted locally. The default is to keep entries until they are removed.
+     *
+     * @param ttlMillis
+     *            the time to live in milliseconds or 0 to keep entries forever
+     */
+    public synchronized void setTimeToLive(long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis may not be negative");
+        }
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Get the local value of a key. This never accesses the network.
+     *
+     * @param key
+     *            the key
+     * @return the value or null if there is no value for this key
+     */
+    public synchronized V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            removed(entries.remove(key));
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Sets the value of a key on all servers.
+     *
+     * @param key
+     *            the key. may not be null
+     * @param value
+     *            the value. may not be null
+     */
+    public void put(String key, V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        write(key, value, TYPE_PUT);
+    }
+
+    /**
+     * Removes the value of a key on all servers.
+     *
+     * @param key
+     *            the key. may not be null
+     */
+    public void remove(String key) {
+        Objects.requireNonNull(key, "key");
+        write(key, null, TYPE_REMOVE);
+    }
+
+    private void write(String key, V value, int type) {
+        Update<V> update;
+        synchronized (this) {
+            long version = nextVersion();
+            String origin = Objects.requireNonNullElse(client.getAccount(), "");
+            apply(key, value, version, origin, System.currentTimeMillis());
+            update = new Update<>(type, List.of(new Entry<>(key, value, version, origin, 0)));
+        }
+        // send without holding this lock, the client lock has to be acquired first
+        client.sendMessage(channel, update, true);
+    }
+
+    /**
+     * Get the number of entries in the local copy
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return values;
+    }
+
+    private long nextVersion() {
+        // hybrid clock: based on the time, but always greater than any version seen before
+        lastVersion = Math.max(System.currentTimeMillis() * 1000, lastVersion + 1);
+        return lastVersion;
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        long ttl = entry.value == null ? Math.max(ttlMillis, TOMBSTONE_MILLIS) : ttlMillis;
+        return ttl > 0 && now - entry.writeTime > ttl;
+    }
+
+    private void apply(String key, V value, long version, String origin, long now) {
+        lastVersion = Math.max(lastVersion, version);
+        Entry<V> old = entries.get(key);
+        if (old != null && !isExpired(old, now) && (old.version > version || (old.version == version && old.origin.compareTo(origin) >= 0))) {
+            return;
+        }
+        removed(entries.put(key, new Entry<>(key, value, version, origin, now)));
+        if (value != null) {
+            values++;
+        }
+        evictOverflow();
+    }
+
+    private void removed(Entry<V> entry) {
+        if (entry != null && entry.value != null) {
+            values--;
+        }
+    }
+
+    private void evictOverflow() {
+        // only values count, removed keys are kept until they expire
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (values > maxSize && it.hasNext()) {
+            Entry<V> entry = it.next();
+            if (entry.value != null) {
+                it.remove();
+                values--;
+            }
+        }
+    }
+
+    synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry<V> entry = it.next();
+            if (isExpired(entry, now)) {
+                it.remove();
+                removed(entry);
+            }
+        }
+    }
+
+    /**
+     * Asks another server for a snapshot.
+     */
+    void requestSnapshot(GlobalServer source) {
+        source.sendMessage(channel, new Update<V>(TYPE_SNAPSHOT_REQUEST, List.of()));
+    }
+
+    void handle(GlobalServer source, Update<V> update) {
+        if (update.type == TYPE_SNAPSHOT_REQUEST) {
+            if (source != null) {
+                client.runInScheduler(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendSnapshot(source);
+                    }
+                });
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Entry<V> entry : update.entries) {
+                String origin = entry.origin != null ? entry.origin : source == null ? "" : source.getName();
+                apply(entry.key, entry.value, entry.version, origin, now);
+            }
+        }
+    }
+
+    /**
+     * Sends all entries to a server that requested a snapshot. The messages are encoded before the client lock is
+     * acquired to send them. Must not be called while holding the lock of this cache or of the client.
+     */
+    private void sendSnapshot(GlobalServer target) {
+        ArrayList<Entry<V>> snapshot;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            snapshot = new ArrayList<>(entries.size());
+            for (Entry<V> entry : entries.values()) {
+                if (!isExpired(entry, now)) {
+                    snapshot.add(entry);
+                }
+            }
+        }
+        MessageOutput chunk = new MessageOutput();
+        int chunkEntries = 0;
+        MessageOutput out = new MessageOutput();
+        for (Entry<V> entry : snapshot) {
+            out.reset();
+            try {
+                UpdateCodec.encodeEntry(valueCodec, entry, true, out);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Could not encode entry " + entry.key + " of cache " + name, e);
+                continue;
+            }
+            if (chunkEntries > 0 && chunk.size() + out.size() > MAX_SNAPSHOT_BYTES) {
+                sendSnapshotChunk(target, chunk, chunkEntries);
+                chunk.reset();
+                chunkEntries = 0;
+            }
+            chunk.write(out.getBuffer(), 0, out.size());
+            chunkEntries++;
+        }
+        if (chunkEntries > 0) {
+            sendSnapshotChunk(target, chunk, chunkEntries);
+        }
+    }
+
+    /**
+     * Sends encoded entries as one snapshot message, in the format of {@link UpdateCodec}.
+     */
+    private void sendSnapshotChunk(GlobalServer target, MessageOutput entries, int count) {
+        MessageOutput message = new MessageOutput(entries.size() + 6);
+        message.writeByte(TYPE_SNAPSHOT);
+        message.writeVarInt(count);
+        message.write(entries.getBuffer(), 0, entries.size());
+        target.sendData(channel, message.toByteArray());
+    }
+
+    static class Entry<V> {
+        final String key;
+        final V value;
+        final long version;
+        final String origin;
+        final long writeTime;
+
+        Entry(String key, V value, long version, String origin, long writeTime) {
+            this.key = key;
+            this.value = value;
+            this.version = version;
+            this.origin = origin;
+            this.writeTime = writeTime;
+        }
+    }
+
+    static class Update<V> {
+        final int type;
+        final List<Entry<V>> entries;
+
+        Update(int type, List<Entry<V>> entries) {
+            this.type = type;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Changes contain one entry without origin, the origin is the sending server. Snapshots contain entries with their
+     * origin. Snapshot requests contain only the type.
+     */
+    static class UpdateCodec<V> implements MessageCodec<Update<V>> {
+        private final MessageCodec<V> valueCodec;
+
+        UpdateCodec(MessageCodec<V> valueCodec) {
+            this.valueCodec = valueCodec;
+        }
+
+        @Override
+        public void encode(Update<V> update, MessageOutput out) throws IOException {
+            out.writeByte(update.type);
+            if (update.type == TYPE_SNAPSHOT) {
+                out.writeVarInt(update.entries.size());
+            }
+            for (Entry<V> entry : update.entries) {
+                encodeEntry(valueCodec, entry, update.type == TYPE_SNAPSHOT, out);
+            }
+        }
+
+        static <V> void encodeEntry(MessageCodec<V> valueCodec, Entry<V> entry, boolean snapshot, MessageOutput out) throws IOException {
+            out.writeString(entry.key);
+            out.writeVarLong(entry.version);
+            if (snapshot) {
+                out.writeString(entry.origin);
+                out.writeBoolean(entry.value != null);
+            }
+            if (entry.value != null) {
+                valueCodec.encode(entry.value, out);
+            }
+        }
+
+        @Override
+        public Update<V> decode(MessageInput in) throws IOException {
+            int type = in.readUnsignedByte();
+            if (type == TYPE_PUT || type == TYPE_REMOVE) {
+                String key = in.readString();
+                long version = in.readVarLong();
+                V value = type == TYPE_PUT ? valueCodec.decode(in) : null;
+                return new Update<>(type, List.of(new Entry<>(key, value, version, null, 0)));
+            } else if (type == TYPE_SNAPSHOT) {
+                int count = in.readVarInt();
+                if (count < 0 || count > in.available()) {
+                    throw new IOException("Invalid entry count " + count);
+                }
+                ArrayList<Entry<V>> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String key = in.readString();
+                    long version = in.readVarLong();
+                    String origin = in.readString();
+                    V value = in.readBoolean() ? valueCodec.decode(in) : null;
+                    entries.add(new Entry<>(key, value, version, origin, 0));
+                }
+                return new Update<>(type, entries);
+            } else if (type == TYPE_SNAPSHOT_REQUEST) {
+                return new Update<>(type, List.of());
+            }
+            throw new IOException("Unknown cache update type " + type);
+        }
+    }
+
+    /**
+     * A codec for byte array values, used by {@link GlobalClient#getCache(String)}.
+     */
+    static final MessageCodec<byte[]> BYTE_ARRAY_CODEC = new MessageCodec<>() {
+        @Override
+        public void encode(byte[] message, MessageOutput out) {
+            out.writeVarInt(message.length);
+            out.write(message);
+        }
+
+        @Override
+        public byte[] decode(MessageInput in) throws IOException {
+            int length = in.readVarInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("Invalid length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return data;
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "ReplicatedCache{name=" + name + "}";
+    }
+}
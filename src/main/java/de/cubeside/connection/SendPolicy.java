@@ -0,0 +1,159 @@
+package de.cubeside.connection;
+
+/**
+ * Limits how messages in a channel are sent. Use {@link GlobalClient#setSendPolicy(String, SendPolicy)} to apply a
+ * policy to a channel. Instances are immutable.
+ */
+public final class SendPolicy {
+    /**
+     * What to do with a message that exceeds the rate limit
+     */
+    public enum OverflowAction {
+        /**
+         * Discard the message
+         */
+        DROP,
+        /**
+         * Queue the message and send it when the rate limit allows it
+         */
+        DELAY
+    }
+
+    private static final SendPolicy UNLIMITED = new SendPolicy(0, 0, 0, OverflowAction.DROP, 1000);
+
+    private final long coalesceIntervalMillis;
+    private final double messagesPerSecond;
+    private final int burst;
+    private final OverflowAction overflowAction;
+    private final int maxDelayedMessages;
+
+    private SendPolicy(long coalesceIntervalMillis, double messagesPerSecond, int burst, OverflowAction overflowAction, int maxDelayedMessages) {
+        this.coalesceIntervalMillis = coalesceIntervalMillis;
+        this.messagesPerSecond = messagesPerSecond;
+        this.burst = burst;
+        this.overflowAction = overflowAction;
+        this.maxDelayedMessages = maxDelayedMessages;
+    }
+
+    /**
+     * Get a policy that sends every message immediately
+     *
+     * @return a policy without limits
+     */
+    public static SendPolicy unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Get a policy that only sends the latest message for each target every intervalMillis milliseconds.
+     *
+     * @param intervalMillis
+     *            the time between two messages to the same target in milliseconds
+     * @return a coalescing policy
+     */
+    public static SendPolicy coalescing(long intervalMillis) {
+        return UNLIMITED.withCoalescing(intervalMillis);
+    }
+
+    /**
+     * Get a policy that limits the number of messages sent in a channel.
+     *
+     * @param messagesPerSecond
+     *            the average number of messages per second
+     * @param burst
+     *            the number of messages that may be sent at once after the channel was idle
+     * @param overflowAction
+     *            what to do with messages exceeding the limit
+     * @return a rate limiting policy
+     */
+    public static SendPolicy rateLimited(double messagesPerSecond, int burst, OverflowAction overflowAction) {
+        return UNLIMITED.withRateLimit(messagesPerSecond, burst, overflowAction);
+    }
+
+    /**
+     * Get a copy of this policy that only sends the latest message for each target every intervalMillis milliseconds.
+     * Messages are to the same target if they are sent to the same player or server with the same flags.
+     *
+     * @param intervalMillis
+     *            the time between two messages to the same target in milliseconds or 0 to disable coalescing
+     * @return the new policy
+     */
+    public SendPolicy withCoalescing(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("intervalMillis may not be negative");
+        }
+        return new SendPolicy(intervalMillis, messagesPerSecond, burst, overflowAction, maxDelayedMessages);
+    }
+
+    /**
+     * Get a copy of this policy with a token bucket rate limit.
+     *
+     * @param messagesPerSecond
+     *            the average number of messages per second or 0 to disable the limit
+     * @param burst
+     *            the number of messages that may be sent at once after the channel was idle
+     * @param overflowAction
+     *            what to do with messages exceeding the limit
+     * @return the new policy
+     */
+    public SendPolicy withRateLimit(double messagesPerSecond, int burst, OverflowAction overflowAction) {
+        if (!(messagesPerSecond >= 0) || Double.isInfinite(messagesPerSecond)) {
+            throw new IllegalArgumentException("invalid messagesPerSecond: " + messagesPerSecond);
+        }
+        if (messagesPerSecond > 0 && burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        if (overflowAction == null) {
+            throw new NullPointerException("overflowAction");
+        }
+        return new SendPolicy(coalesceIntervalMillis, messagesPerSecond, burst, overflowAction, maxDelayedMessages);
+    }
+
+    /**
+     * Get a copy of this policy with a different limit for messages delayed by {@link OverflowAction#DELAY}. Messages
+     * exceeding this limit are dropped. The default is 1000.
+     *
+     * @param maxDelayedMessages
+     *            the maximum number of delayed messages
+     * @return the new policy
+     */
+    public SendPolicy withMaxDelayedMessages(int maxDelayedMessages) {
+        if (maxDelayedMessages < 0) {
+            throw new IllegalArgumentException("maxDelayedMessages may not be negative");
+        }
+        return new SendPolicy(coalesceIntervalMillis, messagesPerSecond, burst, overflowAction, maxDelayedMessages);
+    }
+
+    public long getCoalesceIntervalMillis() {
+        return coalesceIntervalMillis;
+    }
+
+    public boolean isCoalescing() {
+        return coalesceIntervalMillis > 0;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public boolean isRateLimited() {
+        return messagesPerSecond > 0;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public OverflowAction getOverflowAction() {
+        return overflowAction;
+    }
+
+    public int getMaxDelayedMessages() {
+        return maxDelayedMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "SendPolicy{coalesceIntervalMillis=" + coalesceIntervalMillis + ";messagesPerSecond=" + messagesPerSecond + ";burst=" + burst + ";overflowAction=" + overflowAction + ";maxDelayedMessages=" + maxDelayedMessages + "}";
+    }
+}
@@ -0,0 +1,59 @@
+package de.cubeside.connection;
+
+/**
+ * Counters of a channel with a {@link SendPolicy}. Instances are snapshots and are not updated.
+ */
+public final class SendStatistics {
+    private final long sent;
+    private final long coalesced;
+    private final long delayed;
+    private final long dropped;
+
+    SendStatistics(long sent, long coalesced, long delayed, long dropped) {
+        this.sent = sent;
+        this.coalesced = coalesced;
+        this.delayed = delayed;
+        this.dropped = dropped;
+    }
+
+    /**
+     * Get the number of messages that were written to the connection or stored in the spool
+     *
+     * @return the number of sent messages
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the number of messages that were replaced by a newer message to the same target before they were sent
+     *
+     * @return the number of coalesced messages
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Get the number of messages that were queued because of the rate limit
+     *
+     * @return the number of delayed messages
+     */
+    public long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * Get the number of messages that were discarded because of the rate limit
+     *
+     * @return the number of dropped messages
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        return "SendStatistics{sent=" + sent + ";coalesced=" + coalesced + ";delayed=" + delayed + ";dropped=" + dropped + "}";
+    }
+}
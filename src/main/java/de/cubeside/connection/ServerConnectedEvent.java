@@ -0,0 +1,10 @@
+package de.cubeside.connection;
+
+/**
+ * A server connected to the network.
+ *
+ * @param server
+ *            the server
+ */
+public record ServerConnectedEvent(GlobalServer server) implements GlobalEvent {
+}
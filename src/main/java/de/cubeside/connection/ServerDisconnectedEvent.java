@@ -0,0 +1,13 @@
+package de.cubeside.connection;
+
+/**
+ * A server disconnected from the network. A {@link PlayerDisconnectedEvent} is published for each of its players
+ * before. {@link GlobalListener.Delivery#SYNC} and {@link GlobalListener.Delivery#MAIN_THREAD} listeners receive them
+ * before this event. {@link GlobalListener.Delivery#ASYNC} listeners receive the events of players and servers in
+ * different threads, so they may receive this event first.
+ *
+ * @param server
+ *            the server
+ */
+public record ServerDisconnectedEvent(GlobalServer server) implements GlobalEvent {
+}
@@ -0,0 +1,60 @@
+package de.cubeside.connection;
+
+/**
+ * The result of {@link GlobalClient#shutdown(long)}.
+ */
+public final class ShutdownResult {
+    private final long flushed;
+    private final long dropped;
+    private final int unacknowledged;
+    private final boolean completed;
+
+    ShutdownResult(long flushed, long dropped, int unacknowledged, boolean completed) {
+        this.flushed = flushed;
+        this.dropped = dropped;
+        this.unacknowledged = unacknowledged;
+        this.completed = completed;
+    }
+
+    /**
+     * Get the number of queued and spooled messages that were sent or stored in the spool during the shutdown
+     *
+     * @return the number of flushed messages
+     */
+    public long getFlushed() {
+        return flushed;
+    }
+
+    /**
+     * Get the number of queued messages that could not be sent and messages that were rejected because the shutdown
+     * had already started
+     *
+     * @return the number of dropped messages
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the number of reliable messages that had not been acknowledged when the deadline was reached
+     *
+     * @return the number of unacknowledged messages
+     */
+    public int getUnacknowledged() {
+        return unacknowledged;
+    }
+
+    /**
+     * Checks if all messages were acknowledged and all threads stopped before the deadline
+     *
+     * @return true if the shutdown completed in time
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    @Override
+    public String toString() {
+        return "ShutdownResult{flushed=" + flushed + ";dropped=" + dropped + ";unacknowledged=" + unacknowledged + ";completed=" + completed + "}";
+    }
+}
@@ -0,0 +1,311 @@
+package de.cubeside.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes all packets of a {@link GlobalClient} to a file that can be replayed using {@link TrafficReplayer}.
+ * Use {@link GlobalClient#startRecording(Path, boolean)} to create a recorder.
+ * <p>
+ * The file starts with a header (magic, version, flags, start time in epoch milliseconds) followed by records. Each
+ * record consists of the time since the start in nanoseconds (varlong), the direction, the packet type and the fields
+ * of the packet. Strings are written as UTF-8 with a varint length. Payloads are written as varint length followed by
+ * the data or, if payloads are not recorded, by a 64 bit FNV-1a hash.
+ * <p>
+ * Records are collected in a buffer. Full buffers are written to the file by a background thread, so recording a
+ * packet never waits for the disk. If the disk cannot keep up, whole buffers are dropped. A gap record (direction
+ * {@value #GAP}, type 0, number of dropped records as varlong) is written in their place, so a replayer knows that its
+ * state does not match the recording anymore.
+ * <p>
+ * Sent data packets are recorded when they are written to the connection. Packets that are spooled while the client is
+ * not connected are recorded when the spool is sent.
+ */
+public final class TrafficRecorder {
+    static final int MAGIC = 0x47435452;
+    static final int VERSION = 2;
+    static final int FLAG_PAYLOADS = 0x01;
+    static final int INBOUND = 0;
+    static final int OUTBOUND = 1;
+    static final int GAP = 2;
+
+    private static final int FLUSH_THRESHOLD = 1 << 16;
+    private static final int MAX_PENDING_WRITES = 16;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Logger logger;
+    private final Path file;
+    private final FileChannel channel;
+    private final boolean recordPayloads;
+    private final long startNanos;
+    private final ThreadPoolExecutor writer;
+    private MessageOutput buffer;
+    private int bufferRecords;
+    private volatile boolean failed;
+    private boolean closed;
+    private long records;
+    private long droppedRecords;
+    /**
+     * The number of records dropped since the last buffer was handed to the writer thread
+     */
+    private long gapRecords;
+
+    TrafficRecorder(Logger logger, Path file, boolean recordPayloads) throws IOException {
+        this.logger = logger;
+        this.file = file;
+        this.recordPayloads = recordPayloads;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.startNanos = System.nanoTime();
+        this.buffer = new MessageOutput(FLUSH_THRESHOLD + 1024);
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GlobalConnectionRecorder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        buffer.writeInt(MAGIC);
+        buffer.writeByte(VERSION);
+        buffer.writeByte(recordPayloads ? FLAG_PAYLOADS : 0);
+        buffer.writeLong(System.currentTimeMillis());
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean isRecordingPayloads() {
+        return recordPayloads;
+    }
+
+    /**
+     * Get the number of recorded packets
+     *
+     * @return the number of recorded packets
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * Get the number of packets that were not written, because the disk could not keep up
+     *
+     * @return the number of dropped packets
+     */
+    public synchronized long getDroppedRecordCount() {
+        return droppedRecords;
+    }
+
+    private boolean startRecord(int direction, int type, long timeNanos) {
+        if (closed || failed) {
+            return false;
+        }
+        buffer.writeVarLong(Math.max(0, timeNanos - startNanos));
+        buffer.writeByte(direction);
+        buffer.writeByte(type);
+        records++;
+        bufferRecords++;
+        return true;
+    }
+
+    private void endRecord() {
+        if (buffer.size() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+    synchronized void recordInbound(ServerPacketType type, long timeNanos) {
+        if (startRecord(INBOUND, type.ordinal(), timeNanos)) {
+            endRecord();
+        }
+    }
+
+    synchronized void recordOutbound(ClientPacketType type, long timeNanos) {
+        if (startRecord(OUTBOUND, type.ordinal(), timeNanos)) {
+            endRecord();
+        }
+    }
+
+    synchronized void recordServer(ServerPacketType type, String server, long timeNanos) {
+        if (startRecord(INBOUND, type.ordinal(), timeNanos)) {
+            buffer.writeString(server);
+            endRecord();
+        }
+    }
+
+    synchronized void recordPlayerOnline(boolean inbound, String server, UUID uuid, String name, long joinTime, long timeNanos) {
+        if (startRecord(inbound ? INBOUND : OUTBOUND, inbound ? ServerPacketType.PLAYER_ONLINE.ordinal() : ClientPacketType.PLAYER_ONLINE.ordinal(), timeNanos)) {
+            if (inbound) {
+                buffer.writeString(server);
+            }
+            buffer.writeUUID(uuid);
+            buffer.writeString(name);
+            buffer.writeLong(joinTime);
+            endRecord();
+        }
+    }
+
+    synchronized void recordPlayerOffline(boolean inbound, String server, UUID uuid, long timeNanos) {
+        if (startRecord(inbound ? INBOUND : OUTBOUND, inbound ? ServerPacketType.PLAYER_OFFLINE.ordinal() : ClientPacketType.PLAYER_OFFLINE.ordinal(), timeNanos)) {
+            if (inbound) {
+                buffer.writeString(server);
+            }
+            buffer.writeUUID(uuid);
+            endRecord();
+        }
+    }
+
+    synchronized void recordData(boolean inbound, String server, String channel, int flags, UUID targetUuid, String targetServer, byte[] data, int offset, int length, long timeNanos) {
+        if (startRecord(inbound ? INBOUND : OUTBOUND, inbound ? ServerPacketType.DATA.ordinal() : ClientPacketType.DATA.ordinal(), timeNanos)) {
+            if (inbound) {
+                buffer.writeString(server);
+            }
+            buffer.writeString(channel);
+            buffer.writeByte(flags);
+            if (targetUuid != null) {
+                buffer.writeUUID(targetUuid);
+            }
+            if (targetServer != null) {
+                buffer.writeString(targetServer);
+            }
+            buffer.writeVarInt(length);
+            if (recordPayloads) {
+                buffer.write(data, offset, length);
+            } else {
+                buffer.writeLong(hash(data, offset, length));
+            }
+            endRecord();
+        }
+    }
+
+    /**
+     * Records the data packets in frames that were written to the connection.
+     *
+     * @param frames
+     *            one or more data frames like they are sent to the server
+     */
+    synchronized void recordDataFrames(byte[] frames, int offset, int length, long timeNanos) {
+        if (closed || failed) {
+            return;
+        }
+        MessageInput in = new MessageInput(frames, offset, length);
+        try {
+            while (in.available() > 0) {
+                if (in.readUnsignedByte() != ClientPacketType.DATA.ordinal()) {
+                    throw new IOException("Not a data frame");
+                }
+                String channel = in.readUTF();
+                int flags = in.readUnsignedByte();
+                UUID targetUuid = (flags & 0x01) != 0 ? in.readUUID() : null;
+                String targetServer = (flags & 0x02) != 0 ? in.readUTF() : null;
+                int dataLength = in.readInt();
+                int dataOffset = offset + length - in.available();
+                if (dataLength < 0 || dataLength > in.available()) {
+                    throw new IOException("Invalid data length " + dataLength);
+                }
+                in.skipBytes(dataLength);
+                recordData(false, null, channel, flags, targetUuid, targetServer, frames, dataOffset, dataLength, timeNanos);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not record sent data", e);
+        }
+    }
+
+    static long hash(byte[] data, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= data[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Hands the buffer to the writer thread.
+     */
+    private void flush() {
+        if (buffer.size() == 0) {
+            return;
+        }
+        if (writer.getQueue().size() >= MAX_PENDING_WRITES) {
+            // the disk cannot keep up, drop the records instead of blocking the connection
+            droppedRecords += bufferRecords;
+            records -= bufferRecords;
+            gapRecords += bufferRecords;
+            buffer.reset();
+            bufferRecords = 0;
+            // the next buffer starts with the gap, including the gaps dropped before
+            buffer.writeVarLong(Math.max(0, System.nanoTime() - startNanos));
+            buffer.writeByte(GAP);
+            buffer.writeByte(0);
+            buffer.writeVarLong(gapRecords);
+            return;
+        }
+        MessageOutput full = buffer;
+        buffer = new MessageOutput(FLUSH_THRESHOLD + 1024);
+        bufferRecords = 0;
+        gapRecords = 0;
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(full);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already closed
+        }
+    }
+
+    private void write(MessageOutput data) {
+        if (failed) {
+            return;
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.wrap(data.getBuffer(), 0, data.size());
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not write traffic recording " + file + ", stopping recording", e);
+            failed = true;
+        }
+    }
+
+    /**
+     * Writes the remaining records and closes the file, waiting at most {@value #CLOSE_TIMEOUT_MILLIS} milliseconds.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warning("Timeout writing traffic recording " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not close traffic recording " + file, e);
+        }
+    }
+}
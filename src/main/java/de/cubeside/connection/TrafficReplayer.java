@@ -0,0 +1,326 @@
+package de.cubeside.connection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds the received packets of a recording created by {@link GlobalClient#startRecording(Path, boolean)} into a
+ * client, as if they were received from the server. Sent packets in the recording are skipped.
+ * <p>
+ * The client should not be connected to a server. Packets are passed to {@link GlobalClient#runInMainThread(Runnable)}
+ * like packets from the connection and player leaves are delayed by the switch window of the client. Data packets are
+ * passed to the channel handlers without the reliable delivery layer, so replaying does not change sequence numbers or
+ * send acknowledgements. If the recording does not contain payloads, data packets are replayed with a payload of zeros
+ * of the recorded size.
+ * <p>
+ * Where the recorder had to drop packets, the replayer removes all servers except the own one, like after a lost
+ * connection, because its state does not match the recording anymore. Servers and players are added again by the
+ * packets after the gap.
+ */
+public class TrafficReplayer {
+    private final GlobalClient client;
+    private final Path file;
+    private final AtomicLong rejected;
+    private final GlobalClient.PresenceHandler presence;
+    private long replayed;
+    private long skipped;
+    private long gaps;
+
+    public TrafficReplayer(GlobalClient client, Path file) {
+        this.client = client;
+        this.file = file;
+        this.rejected = new AtomicLong();
+        this.presence = client.new PresenceHandler() {
+            @Override
+            void apply(Runnable change) {
+                client.runInMainThread(guarded(change));
+            }
+        };
+    }
+
+    /**
+     * Replays the recording in the calling thread.
+     *
+     * @param speed
+     *            the speed relative to the recording, for example 2 to replay twice as fast. Use 0 to replay without
+     *            waiting between packets.
+     * @return the number of replayed packets
+     * @throws IOException
+     *             if the recording cannot be read or is invalid
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting for the next packet
+     */
+    public long replay(double speed) throws IOException, InterruptedException {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("invalid speed: " + speed);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException("Not a traffic recording: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > TrafficRecorder.VERSION) {
+                throw new IOException("Unsupported traffic recording version " + version);
+            }
+            boolean payloads = (in.readUnsignedByte() & TrafficRecorder.FLAG_PAYLOADS) != 0;
+            in.readLong(); // start time
+
+            long startNanos = System.nanoTime();
+            while (true) {
+                long time;
+                try {
+                    time = readVarLong(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                int direction = in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                if (direction == TrafficRecorder.GAP) {
+                    readVarLong(in); // dropped records
+                    gaps++;
+                    resetState();
+                    continue;
+                }
+                Runnable task;
+                if (direction == TrafficRecorder.INBOUND) {
+                    task = readInbound(in, type, payloads);
+                } else {
+                    skipOutbound(in, type, payloads);
+                    task = null;
+                }
+                if (task == null) {
+                    skipped++;
+                    continue;
+                }
+                if (speed > 0) {
+                    long wait = (long) (time / speed) - (System.nanoTime() - startNanos);
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+                task.run();
+                replayed++;
+            }
+        } finally {
+            // like a closed connection
+            presence.flushPendingLeaves(null);
+        }
+        return replayed;
+    }
+
+    /**
+     * Removes all servers except the own one, like a closed connection.
+     */
+    private void resetState() {
+        presence.flushPendingLeaves(null);
+        client.runInMainThread(new Runnable() {
+            @Override
+            public void run() {
+                client.clearRemoteServers();
+            }
+        });
+    }
+
+    private Runnable readInbound(DataInputStream in, int type, boolean payloads) throws IOException {
+        ServerPacketType packet = ServerPacketType.valueOf(type);
+        switch (packet) {
+            case SERVER_ONLINE: {
+                String server = readString(in);
+                return inMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        client.setServerOnline(server);
+                    }
+                });
+            }
+            case SERVER_OFFLINE: {
+                String server = readString(in);
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        presence.flushPendingLeaves(server);
+                        client.runInMainThread(guarded(new Runnable() {
+                            @Override
+                            public void run() {
+                                client.setServerOffine(server);
+                            }
+                        }));
+                    }
+                };
+            }
+            case PLAYER_ONLINE: {
+                String server = readString(in);
+                UUID uuid = readUUID(in);
+                String name = readString(in);
+                long joinTime = in.readLong();
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        presence.handlePlayerOnline(server, uuid, name, joinTime);
+                    }
+                };
+            }
+            case PLAYER_OFFLINE: {
+                String server = readString(in);
+                UUID uuid = readUUID(in);
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        presence.handlePlayerOffline(server, uuid);
+                    }
+                };
+            }
+            case DATA: {
+                String server = readString(in);
+                String channel = readString(in);
+                int flags = in.readUnsignedByte();
+                UUID targetUuid = (flags & 0x01) != 0 ? readUUID(in) : null;
+                String targetServer = (flags & 0x02) != 0 ? readString(in) : null;
+                byte[] data = readPayload(in, payloads);
+                Runnable delivery = client.prepareReplayDelivery(server, channel, targetUuid, targetServer, data);
+                return delivery == null ? null : inMainThread(delivery);
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static void skipOutbound(DataInputStream in, int type, boolean payloads) throws IOException {
+        ClientPacketType packet = ClientPacketType.valueOf(type);
+        switch (packet) {
+            case PLAYER_ONLINE: {
+                readUUID(in);
+                readString(in);
+                in.readLong();
+                break;
+            }
+            case PLAYER_OFFLINE: {
+                readUUID(in);
+                break;
+            }
+            case DATA: {
+                readString(in);
+                int flags = in.readUnsignedByte();
+                if ((flags & 0x01) != 0) {
+                    readUUID(in);
+                }
+                if ((flags & 0x02) != 0) {
+                    readString(in);
+                }
+                int length = readVarInt(in);
+                in.skipNBytes(payloads ? length : 8);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private Runnable inMainThread(Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                client.runInMainThread(guarded(task));
+            }
+        };
+    }
+
+    private Runnable guarded(Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (IllegalArgumentException e) {
+                    // the packet does not match the state of the client
+                    rejected.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the number of replayed packets that did not match the state of the client, for example a player leaving a
+     * server that they are not on.
+     *
+     * @return the number of rejected packets
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of skipped packets. This includes sent packets and packets that could not be decoded.
+     *
+     * @return the number of skipped packets
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the number of gaps in the recording, where the recorder dropped packets because the disk could not keep up.
+     *
+     * @return the number of gaps
+     */
+    public long getGaps() {
+        return gaps;
+    }
+
+    private static byte[] readPayload(DataInputStream in, boolean payloads) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > 10_000_000) {
+            throw new IOException("Invalid payload length " + length);
+        }
+        byte[] data = new byte[length];
+        if (payloads) {
+            in.readFully(data);
+        } else {
+            in.readLong(); // hash
+        }
+        return data;
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        long mostSigBits = in.readLong();
+        long leastSigBits = in.readLong();
+        return new UUID(mostSigBits, leastSigBits);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long v = readVarLong(in);
+        if (v > Integer.MAX_VALUE || v < Integer.MIN_VALUE) {
+            throw new IOException("VarInt too long");
+        }
+        return (int) v;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("VarLong too long");
+    }
+}
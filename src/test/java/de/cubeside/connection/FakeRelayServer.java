@@ -0,0 +1,308 @@
+package de.cubeside.connection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A minimal relay server for tests. It accepts one connection at a time, reports the configured servers and the players
+ * on them online and keeps the received data packets.
+ */
+class FakeRelayServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final String password;
+    private final String[] onlineServers;
+    private final LinkedBlockingQueue<ReceivedData> received;
+    private final AtomicInteger connections;
+    private volatile Socket socket;
+    private DataOutputStream out;
+    private volatile int closeAfterData;
+    /**
+     * The players reported online, by server
+     */
+    private final HashMap<String, LinkedHashMap<UUID, PlayerOnline>> players;
+
+    FakeRelayServer(String password, String... onlineServers) throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        this.password = password;
+        this.onlineServers = onlineServers;
+        this.received = new LinkedBlockingQueue<>();
+        this.connections = new AtomicInteger();
+        this.closeAfterData = -1;
+        this.players = new HashMap<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "FakeRelayServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Drops the connection without reading further data after the given number of data packets were received on it.
+     */
+    void closeAfterData(int packets) {
+        this.closeAfterData = packets;
+    }
+
+    ReceivedData pollData(long timeoutMillis) throws InterruptedException {
+        return received.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reports a player online. The player is reported again on every new connection, until
+     * {@link #sendPlayerOffline(String, UUID)} is called.
+     *
+     * @throws IOException
+     *             if the current connection was closed
+     */
+    synchronized void sendPlayerOnline(String server, UUID uuid, String name, long joinTime) throws IOException {
+        PlayerOnline player = new PlayerOnline(uuid, name, joinTime);
+        LinkedHashMap<UUID, PlayerOnline> onServer = players.get(server);
+        if (onServer == null) {
+            onServer = new LinkedHashMap<>();
+            players.put(server, onServer);
+        }
+        onServer.put(uuid, player);
+        writePlayerOnline(server, player);
+        out.flush();
+    }
+
+    /**
+     * Reports a player offline.
+     *
+     * @throws IOException
+     *             if the current connection was closed
+     */
+    synchronized void sendPlayerOffline(String server, UUID uuid) throws IOException {
+        LinkedHashMap<UUID, PlayerOnline> onServer = players.get(server);
+        if (onServer != null) {
+            onServer.remove(uuid);
+        }
+        out.writeByte(ServerPacketType.PLAYER_OFFLINE.ordinal());
+        out.writeUTF(server);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+        out.flush();
+    }
+
+    synchronized boolean isPlayerOnline(String server, UUID uuid) {
+        LinkedHashMap<UUID, PlayerOnline> onServer = players.get(server);
+        return onServer != null && onServer.containsKey(uuid);
+    }
+
+    /**
+     * Get the players reported online on a server
+     *
+     * @return a copy of the uuids
+     */
+    synchronized Set<UUID> getPlayers(String server) {
+        LinkedHashMap<UUID, PlayerOnline> onServer = players.get(server);
+        return onServer == null ? new HashSet<>() : new HashSet<>(onServer.keySet());
+    }
+
+    private void writePlayerOnline(String server, PlayerOnline player) throws IOException {
+        out.writeByte(ServerPacketType.PLAYER_ONLINE.ordinal());
+        out.writeUTF(server);
+        out.writeLong(player.uuid.getMostSignificantBits());
+        out.writeLong(player.uuid.getLeastSignificantBits());
+        out.writeUTF(player.name);
+        out.writeLong(player.joinTime);
+    }
+
+    /**
+     * Sends a data packet on the current connection.
+     *
+     * @return false if the connection was closed
+     */
+    synchronized boolean sendData(String server, String channel, byte[] data) {
+        try {
+            out.writeByte(ServerPacketType.DATA.ordinal());
+            out.writeUTF(server);
+            out.writeUTF(channel);
+            out.writeByte(0);
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try (Socket s = serverSocket.accept()) {
+                socket = s;
+                connections.incrementAndGet();
+                handleConnection(s);
+            } catch (IOException | GeneralSecurityException e) {
+                // connection closed
+            }
+        }
+    }
+
+    private void handleConnection(Socket s) throws IOException, GeneralSecurityException {
+        DataInputStream plainIn = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream plainOut = new DataOutputStream(s.getOutputStream());
+        byte[] randomNumberClient = new byte[32];
+        plainIn.readFully(randomNumberClient);
+        byte[] randomNumberServer = new byte[32];
+        new SecureRandom().nextBytes(randomNumberServer);
+        plainOut.write(randomNumberServer);
+        plainIn.readUTF();
+        byte[] hash = new byte[32];
+        plainIn.readFully(hash);
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(passwordBytes);
+        digest.update(randomNumberServer);
+        digest.update(randomNumberClient);
+        if (!MessageDigest.isEqual(hash, digest.digest())) {
+            plainOut.writeByte(1);
+            return;
+        }
+        plainOut.writeByte(0);
+        digest.update(randomNumberServer);
+        digest.update(passwordBytes);
+        digest.update(randomNumberClient);
+        byte[] secret = digest.digest();
+        byte[] keyMask = new byte[32];
+        new SecureRandom().nextBytes(keyMask);
+        plainOut.write(keyMask);
+        byte[] clientInKey = new byte[16];
+        byte[] clientOutKey = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            clientInKey[i] = (byte) (secret[i] ^ keyMask[i]);
+            clientOutKey[i] = (byte) (secret[i + 16] ^ keyMask[i + 16]);
+        }
+        Cipher encrypt = Cipher.getInstance("AES/CFB8/NoPadding");
+        encrypt.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(clientInKey, "AES"), new IvParameterSpec(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }));
+        Cipher decrypt = Cipher.getInstance("AES/CFB8/NoPadding");
+        decrypt.init(Cipher.DECRYPT_MODE, new SecretKeySpec(clientOutKey, "AES"), new IvParameterSpec(new byte[] { 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1 }));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new CipherInputStream(plainIn, decrypt)));
+        synchronized (this) {
+            out = new DataOutputStream(new CipherOutputStream(plainOut, encrypt));
+            for (String server : onlineServers) {
+                out.writeByte(ServerPacketType.SERVER_ONLINE.ordinal());
+                out.writeUTF(server);
+            }
+            for (String server : onlineServers) {
+                LinkedHashMap<UUID, PlayerOnline> onServer = players.get(server);
+                if (onServer != null) {
+                    for (PlayerOnline player : onServer.values()) {
+                        writePlayerOnline(server, player);
+                    }
+                }
+            }
+            out.flush();
+        }
+        int dataPackets = 0;
+        while (true) {
+            ClientPacketType type = ClientPacketType.valueOf(in.readUnsignedByte());
+            switch (type) {
+                case PLAYER_ONLINE:
+                    in.readLong();
+                    in.readLong();
+                    in.readUTF();
+                    in.readLong();
+                    break;
+                case PLAYER_OFFLINE:
+                    in.readLong();
+                    in.readLong();
+                    break;
+                case SERVER_OFFLINE:
+                    return;
+                case DATA: {
+                    String channel = in.readUTF();
+                    int flags = in.readByte();
+                    if ((flags & 0x01) != 0) {
+                        in.readLong();
+                        in.readLong();
+                    }
+                    if ((flags & 0x02) != 0) {
+                        in.readUTF();
+                    }
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    received.add(new ReceivedData(channel, data));
+                    if (++dataPackets == closeAfterData) {
+                        closeAfterData = -1;
+                        // reset the connection, data that was not read yet is lost
+                        s.setSoLinger(true, 0);
+                        return;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        Socket s = socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private static class PlayerOnline {
+        private final UUID uuid;
+        private final String name;
+        private final long joinTime;
+
+        PlayerOnline(UUID uuid, String name, long joinTime) {
+            this.uuid = uuid;
+            this.name = name;
+            this.joinTime = joinTime;
+        }
+    }
+
+    static class ReceivedData {
+        final String channel;
+        final byte[] data;
+
+        ReceivedData(String channel, byte[] data) {
+            this.channel = channel;
+            this.data = data;
+        }
+    }
+}
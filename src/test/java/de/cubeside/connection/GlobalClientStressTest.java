@@ -0,0 +1,299 @@
+package de.cubeside.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Changes servers and players from several threads and checks that the state stays consistent, both offline and while
+ * connected to a {@link FakeRelayServer}.
+ */
+class GlobalClientStressTest {
+    private static final int THREADS = 6;
+    private static final long DURATION_MILLIS = 1000;
+    private static final int SERVERS = 8;
+    private static final int PLAYERS = 32;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private TestClient client;
+    private UUID[] players;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        client = new TestClient(false);
+        client.setServer(null, 0, "self", "password");
+        players = new UUID[PLAYERS];
+        for (int i = 0; i < players.length; i++) {
+            players[i] = UUID.randomUUID();
+        }
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        client.shutdown(0);
+    }
+
+    @Test
+    void concurrentJoinLeaveSwitchAndDisconnect() throws Exception {
+        AtomicLong operations = new AtomicLong();
+        runConcurrently(new Operation() {
+            @Override
+            public void run(ThreadLocalRandom random) {
+                String server = "s" + random.nextInt(SERVERS);
+                String other = "s" + random.nextInt(SERVERS);
+                UUID uuid = players[random.nextInt(players.length)];
+                try {
+                    switch (random.nextInt(8)) {
+                        case 0:
+                            client.setServerOnline(server);
+                            break;
+                        case 1:
+                            client.setServerOffine(server);
+                            break;
+                        case 2:
+                        case 3:
+                            client.setPlayerOnline(server, uuid, "player", random.nextLong(1000));
+                            break;
+                        case 4:
+                        case 5:
+                            client.setPlayerOffline(server, uuid);
+                            break;
+                        case 6:
+                            client.switchPlayerServer(server, uuid, other, "player", random.nextLong(1000));
+                            break;
+                        default:
+                            if (random.nextInt(50) == 0) {
+                                // like a lost connection
+                                client.clearServersAndPlayers();
+                            } else {
+                                client.sendData("stress", new byte[8]);
+                            }
+                    }
+                } catch (IllegalArgumentException e) {
+                    // the change does not match the current state
+                }
+                operations.incrementAndGet();
+            }
+        });
+        assertTrue(operations.get() > 0);
+        client.checkState();
+    }
+
+    @Test
+    void concurrentJoinAndLeaveWithSwitchWindow() throws Exception {
+        client.setPlayerSwitchWindow(5);
+        for (int i = 0; i < SERVERS; i++) {
+            client.setServerOnline("s" + i);
+        }
+        GlobalClient.PresenceHandler presence = client.new PresenceHandler() {
+            @Override
+            void apply(Runnable change) {
+                try {
+                    change.run();
+                } catch (IllegalArgumentException e) {
+                    // the change does not match the current state
+                }
+            }
+        };
+        runConcurrently(new Operation() {
+            @Override
+            public void run(ThreadLocalRandom random) {
+                String server = "s" + random.nextInt(SERVERS);
+                UUID uuid = players[random.nextInt(players.length)];
+                if (random.nextBoolean()) {
+                    presence.handlePlayerOnline(server, uuid, "player", random.nextLong(1000));
+                } else {
+                    presence.handlePlayerOffline(server, uuid);
+                }
+            }
+        });
+        presence.flushPendingLeaves(null);
+        client.checkState();
+        for (UUID uuid : players) {
+            GlobalPlayer player = client.getPlayer(uuid);
+            if (player != null) {
+                for (int i = 0; i < SERVERS; i++) {
+                    GlobalServer server = client.getServer("s" + i);
+                    if (player.isOnServer(server)) {
+                        presence.handlePlayerOffline(server.getName(), uuid);
+                    }
+                }
+            }
+        }
+        presence.flushPendingLeaves(null);
+        client.checkState();
+        for (UUID uuid : players) {
+            assertNull(client.getPlayer(uuid));
+        }
+        assertEquals(SERVERS + 1, client.getServers().size());
+    }
+
+    @Test
+    void concurrentOperationsOnConnectedClient() throws Exception {
+        String[] remoteServers = new String[SERVERS];
+        for (int i = 0; i < SERVERS; i++) {
+            remoteServers[i] = "s" + i;
+        }
+        try (FakeRelayServer relay = new FakeRelayServer("password", remoteServers)) {
+            client.setReconnectPolicy(BackoffReconnectPolicy.defaults().withDelays(10, 50));
+            client.setServer(relay.getHost(), relay.getPort(), "self", "password");
+            awaitRelayState(relay);
+
+            runConcurrently(new Operation() {
+                @Override
+                public void run(ThreadLocalRandom random) {
+                    UUID uuid = players[random.nextInt(players.length)];
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            changeRemotePlayer(relay, "s" + random.nextInt(SERVERS), uuid, random);
+                            break;
+                        case 1:
+                            changeLocalPlayer(uuid, random);
+                            break;
+                        default:
+                            if (random.nextInt(200) == 0) {
+                                // reconnect, the relay reports its players again
+                                client.setServer(relay.getHost(), relay.getPort(), "self", "password");
+                            } else {
+                                client.sendData("stress", new byte[8]);
+                            }
+                    }
+                }
+            });
+            client.checkState();
+            awaitRelayState(relay);
+            client.checkState();
+
+            // shut down while players change and data is sent
+            Future<ShutdownResult> shutdown = executor.submit(new Callable<ShutdownResult>() {
+                @Override
+                public ShutdownResult call() throws Exception {
+                    Thread.sleep(DURATION_MILLIS / 2);
+                    return client.shutdown(DURATION_MILLIS);
+                }
+            });
+            runConcurrently(new Operation() {
+                @Override
+                public void run(ThreadLocalRandom random) {
+                    UUID uuid = players[random.nextInt(players.length)];
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            changeRemotePlayer(relay, "s" + random.nextInt(SERVERS), uuid, random);
+                            break;
+                        case 1:
+                            changeLocalPlayer(uuid, random);
+                            break;
+                        default:
+                            client.sendData("stress", new byte[8]);
+                    }
+                }
+            });
+            assertTrue(shutdown.get().isCompleted());
+            assertFalse(client.isConnected());
+            client.checkState();
+        }
+    }
+
+    private void changeRemotePlayer(FakeRelayServer relay, String server, UUID uuid, ThreadLocalRandom random) {
+        try {
+            synchronized (relay) {
+                if (relay.isPlayerOnline(server, uuid)) {
+                    relay.sendPlayerOffline(server, uuid);
+                } else {
+                    relay.sendPlayerOnline(server, uuid, "player", random.nextLong(1000));
+                }
+            }
+        } catch (IOException e) {
+            // the client reconnects, the relay reports the change on the next connection
+        }
+    }
+
+    private void changeLocalPlayer(UUID uuid, ThreadLocalRandom random) {
+        try {
+            if (random.nextBoolean()) {
+                client.onPlayerOnline(uuid, "player", random.nextLong(1000));
+            } else {
+                client.onPlayerOffline(uuid);
+            }
+        } catch (IllegalArgumentException e) {
+            // the change does not match the current state
+        }
+    }
+
+    /**
+     * Waits until the client is connected and knows the players the relay reported.
+     */
+    private void awaitRelayState(FakeRelayServer relay) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!matchesRelayState(relay)) {
+            assertTrue(System.currentTimeMillis() < deadline, "the client does not match the relay");
+            Thread.sleep(5);
+        }
+    }
+
+    private boolean matchesRelayState(FakeRelayServer relay) {
+        if (!client.isConnected()) {
+            return false;
+        }
+        for (int i = 0; i < SERVERS; i++) {
+            GlobalServer server = client.getServer("s" + i);
+            if (server == null) {
+                return false;
+            }
+            HashSet<UUID> online = new HashSet<>();
+            for (GlobalPlayer player : server.getPlayers()) {
+                online.add(player.getUniqueId());
+            }
+            if (!online.equals(relay.getPlayers(server.getName()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runConcurrently(Operation operation) throws Exception {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS - 1; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end) {
+                        operation.run(random);
+                    }
+                }
+            }));
+        }
+        // check the state while it is changed
+        while (System.nanoTime() < end) {
+            client.checkState();
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private interface Operation {
+        void run(ThreadLocalRandom random);
+    }
+}
@@ -0,0 +1,147 @@
+package de.cubeside.connection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.BitSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Sends reliable packets while the relay drops the connection and checks that every packet arrives at a receiver that
+ * drops duplicates like {@link ReliableDelivery}.
+ */
+class ReliableDeliveryTest {
+    private static final int PACKETS = 1000;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private TestClient client;
+
+    @TempDir
+    Path spoolDirectory;
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.shutdown(0);
+        }
+    }
+
+    @Test
+    void noLossAcrossReconnect() throws Exception {
+        sendAcrossReconnect(false);
+    }
+
+    @Test
+    void noLossAcrossReconnectWithSpool() throws Exception {
+        sendAcrossReconnect(true);
+    }
+
+    private void sendAcrossReconnect(boolean spooled) throws Exception {
+        try (FakeRelayServer relay = new FakeRelayServer("password", "other")) {
+            relay.closeAfterData(PACKETS / 4);
+            client = new TestClient(false);
+            client.setReconnectPolicy(BackoffReconnectPolicy.defaults().withDelays(10, 50));
+            client.setReliable("reliable", true);
+            if (spooled) {
+                client.enableSpool(spoolDirectory, 16 << 20, 0);
+                client.setSpooled("reliable", true);
+            }
+            client.setServer(relay.getHost(), relay.getPort(), "self", "password");
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (client.getServer("other") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertNotNull(client.getServer("other"));
+
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < PACKETS; i++) {
+                        client.sendData("reliable", new byte[] { (byte) (i >> 8), (byte) i });
+                        if (i % 50 == 0) {
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+            sender.start();
+
+            BitSet delivered = new BitSet();
+            long epoch = 0;
+            long highestSeq = 0;
+            while (delivered.cardinality() < PACKETS) {
+                FakeRelayServer.ReceivedData received = relay.pollData(TIMEOUT_MILLIS);
+                assertNotNull(received, "missing packets, delivered " + delivered.cardinality());
+                MessageInput in = new MessageInput(received.data);
+                epoch = in.readLong();
+                long seq = in.readVarLong();
+                if (seq <= highestSeq) {
+                    continue;
+                }
+                highestSeq = seq;
+                delivered.set(in.readUnsignedByte() << 8 | in.readUnsignedByte());
+                if (seq % 64 == 0) {
+                    acknowledge(relay, epoch, highestSeq);
+                }
+            }
+            sender.join();
+            assertTrue(relay.getConnections() >= 2);
+
+            acknowledge(relay, epoch, highestSeq);
+            deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (client.getReliableDelivery().getUnacknowledged() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, client.getReliableDelivery().getUnacknowledged());
+            assertEquals(0, client.getReliableDelivery().getFailed());
+        }
+    }
+
+    @Test
+    void broadcastWhileDisconnectedIsSentAfterConnect() throws Exception {
+        try (FakeRelayServer relay = new FakeRelayServer("password", "other")) {
+            client = new TestClient(false);
+            client.setServer(null, 0, "self", "password");
+            client.setReliable("reliable", true);
+            client.sendData("reliable", new byte[] { 42 });
+            assertEquals(1, client.getReliableDelivery().getUnacknowledged());
+
+            client.setServer(relay.getHost(), relay.getPort(), "self", "password");
+            FakeRelayServer.ReceivedData received = relay.pollData(TIMEOUT_MILLIS);
+            assertNotNull(received);
+            MessageInput in = new MessageInput(received.data);
+            long epoch = in.readLong();
+            long seq = in.readVarLong();
+            assertEquals(42, in.readByte());
+            acknowledge(relay, epoch, seq);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (client.getReliableDelivery().getUnacknowledged() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, client.getReliableDelivery().getAcknowledged());
+            assertEquals(0, client.getReliableDelivery().getFailed());
+        }
+    }
+
+    /**
+     * Sends an acknowledgement. If the relay has just dropped the connection, it is sent on the next one.
+     */
+    private static void acknowledge(FakeRelayServer relay, long epoch, long seq) throws InterruptedException {
+        MessageOutput ack = new MessageOutput(18);
+        ack.writeLong(epoch);
+        ack.writeVarLong(seq);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!relay.sendData("other", ReliableDelivery.ACK_CHANNEL, ack.toByteArray())) {
+            assertTrue(System.currentTimeMillis() < deadline, "no connection to send the acknowledgement");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package de.cubeside.connection;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that packets received by a replaced connection are not applied after the new connection was started.
+ */
+class StaleConnectionTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private TestClient client;
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.shutdown(0);
+        }
+    }
+
+    @Test
+    void eventsOfReplacedConnectionAreDropped() throws Exception {
+        try (FakeRelayServer first = new FakeRelayServer("password", "first"); FakeRelayServer second = new FakeRelayServer("password", "second")) {
+            client = new TestClient(true);
+            client.setServer(first.getHost(), first.getPort(), "self", "password");
+            awaitServer("first");
+
+            // received by the first connection, but not applied yet
+            UUID uuid = UUID.randomUUID();
+            first.sendPlayerOnline("first", uuid, "player", 1);
+            assertTrue(client.awaitMainThreadTask(TIMEOUT_MILLIS));
+
+            client.setServer(second.getHost(), second.getPort(), "self", "password");
+            client.runMainThreadTasks();
+            assertNull(client.getPlayer(uuid));
+            assertNull(client.getServer("first"));
+            client.checkState();
+
+            awaitServer("second");
+            assertNull(client.getServer("first"));
+            client.checkState();
+        }
+    }
+
+    private void awaitServer(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (client.getServer(name) == null && System.currentTimeMillis() < deadline) {
+            client.awaitMainThreadTask(100);
+            client.runMainThreadTasks();
+        }
+        assertNotNull(client.getServer(name));
+    }
+}
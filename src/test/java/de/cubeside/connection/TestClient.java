@@ -0,0 +1,86 @@
+package de.cubeside.connection;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client for tests. Tasks for the main thread are either run at once or queued until {@link #runMainThreadTasks()}
+ * is called.
+ */
+class TestClient extends GlobalClient {
+    private final boolean queueMainThreadTasks;
+    private final ArrayDeque<Runnable> mainThreadTasks;
+
+    TestClient(boolean queueMainThreadTasks) {
+        super(null);
+        this.queueMainThreadTasks = queueMainThreadTasks;
+        this.mainThreadTasks = new ArrayDeque<>();
+    }
+
+    @Override
+    protected void runInMainThread(Runnable r) {
+        if (!queueMainThreadTasks) {
+            r.run();
+            return;
+        }
+        synchronized (mainThreadTasks) {
+            mainThreadTasks.add(r);
+            mainThreadTasks.notifyAll();
+        }
+    }
+
+    /**
+     * Runs the queued main thread tasks, including tasks queued while they run.
+     *
+     * @return the number of tasks
+     */
+    int runMainThreadTasks() {
+        int count = 0;
+        while (true) {
+            Runnable task;
+            synchronized (mainThreadTasks) {
+                task = mainThreadTasks.poll();
+            }
+            if (task == null) {
+                return count;
+            }
+            task.run();
+            count++;
+        }
+    }
+
+    /**
+     * Waits until at least one main thread task is queued.
+     *
+     * @return true if a task is queued
+     */
+    boolean awaitMainThreadTask(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (mainThreadTasks) {
+            while (mainThreadTasks.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mainThreadTasks, remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected void onPlayerJoined(GlobalServer server, GlobalPlayer player, boolean joinedTheNetwork) {
+    }
+
+    @Override
+    protected void onPlayerDisconnected(GlobalServer server, GlobalPlayer player, boolean leftTheNetwork) {
+    }
+
+    @Override
+    protected void onServerDisconnected(GlobalServer server) {
+    }
+
+    @Override
+    protected void onServerConnected(GlobalServer server) {
+    }
+}